@@ -0,0 +1,259 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// the code generator emits a whole program into one assembler, in one pass:
+// instructions are appended to one growable list, jumps refer to Label objects that get their position when they are bound,
+// and the jumps are patched with the numbers of their labels once at the end (finish), so no code is copied or relabeled
+public class Assembler {
+
+    // a jump destination, jumps can refer to it before it is bound
+    static class Label {
+
+        // index of the instruction it points to (-1 = not bound yet)
+        int position = -1;
+
+        // in the listing, set by finish()
+        int number = -1;
+    }
+
+    List<Instr> instructions = new ArrayList<>();
+
+    // the destination of the jump at the same index (null for all other instructions)
+    List<Label> jumpDestinations = new ArrayList<>();
+
+    // labels are only bound at the end, so this is in the order of their positions
+    List<Label> boundLabels = new ArrayList<>();
+
+    Map<String, Integer> functionNamesToCodeStart = new HashMap<>();
+
+    // positions of the LoadC instructions that load the address of a global variable, the linker moves them (see ObjectModule)
+    List<Integer> globalAddresses = new ArrayList<>();
+
+    // index of the next instruction
+    public int position(){
+        return instructions.size();
+    }
+
+    public void emit(Instr instruction){
+        instructions.add(instruction);
+        jumpDestinations.add(null);
+    }
+
+    // Jump, JumpZ or LessJumpZ, the jump label is filled in by finish()
+    public void emitJump(Instr jump, Label destination){
+        instructions.add(jump);
+        jumpDestinations.add(destination);
+    }
+
+    // LoadC with the address of a global variable, relative to the first global variable of the file
+    public void emitGlobalAddress(int address){
+        globalAddresses.add(position());
+        emit(new Instr.LoadC(address));
+    }
+
+    public Label newLabel(){
+        return new Label();
+    }
+
+    // the next instruction becomes the destination of the label
+    public void bind(Label label){
+
+        if(label.position != -1){
+            throw new RuntimeException(String.format("Label is already bound to %d.", label.position));
+        }
+
+        label.position = position();
+        boundLabels.add(label);
+    }
+
+    public Label bindNewLabel(){
+        Label label = newLabel();
+        bind(label);
+        return label;
+    }
+
+    // the next instruction is the start of the function
+    public void function(String functionName){
+
+        if(functionNamesToCodeStart.containsKey(functionName)){
+            throw new RuntimeException(String.format("Function '%s' is declared multiple times.", functionName));
+        }
+
+        functionNamesToCodeStart.put(functionName, position());
+    }
+
+    // drops the instructions from position on (e.g. to generate a function again), labels bound there are unbound again
+    public void truncate(int position){
+
+        instructions.subList(position, instructions.size()).clear();
+        jumpDestinations.subList(position, jumpDestinations.size()).clear();
+
+        while(!boundLabels.isEmpty() && boundLabels.getLast().position >= position){
+            boundLabels.removeLast().position = -1;
+        }
+
+        while(!globalAddresses.isEmpty() && globalAddresses.getLast() >= position){
+            globalAddresses.removeLast();
+        }
+    }
+
+    // largest number of cells the instructions from start on occupy above the stack pointer they start with
+    // (locals, temporaries and the frame cells of the functions they invoke), used for Enter
+    // jumps may only go to labels in that range
+    public int maxStackDepth(int start){
+
+        int end = instructions.size();
+
+        int[] depths = new int[end - start + 1];
+        Arrays.fill(depths, -1);
+
+        Deque<Integer> worklist = new ArrayDeque<>();
+        depths[0] = 0;
+        worklist.push(start);
+
+        int maxDepth = 0;
+
+        while(!worklist.isEmpty()){
+            int i = worklist.pop();
+
+            // fell off the end
+            if(i == end){
+                continue;
+            }
+
+            Instr instr = instructions.get(i);
+            int depth = depths[i - start];
+
+            // the callee's frame (return value, extreme pointer, old frame pointer, return address) is pushed on top
+            // (a tail call reuses the current frame instead)
+            if(instr instanceof Instr.Invoke && !(instr instanceof Instr.TailInvoke)){
+                maxDepth = Math.max(maxDepth, depth + 4);
+            }
+
+            int depthAfter = depth + stackEffect(instr);
+            maxDepth = Math.max(maxDepth, depthAfter);
+
+            if(instr instanceof Instr.Return || instr instanceof Instr.TailInvoke || instr instanceof Instr.Halt){
+                continue;
+            }
+
+            Label destination = jumpDestinations.get(i);
+            if(destination != null){
+                if(destination.position < start){
+                    throw new RuntimeException(String.format("'%s' at %d jumps out of the code starting at %d.", instr, i, start));
+                }
+                flowTo(depths, start, destination.position, depthAfter, worklist);
+            }
+
+            if(!(instr instanceof Instr.Jump)){
+                flowTo(depths, start, i + 1, depthAfter, worklist);
+            }
+        }
+
+        return maxDepth;
+    }
+
+    // every path has to reach an instruction with the same depth, otherwise the depth of Enter only holds for one of them
+    private void flowTo(int[] depths, int start, int destination, int depth, Deque<Integer> worklist){
+        int known = depths[destination - start];
+
+        if(known == -1){
+            depths[destination - start] = depth;
+            worklist.push(destination);
+        }
+        else if(known != depth){
+            throw new RuntimeException(String.format("The stack holds %d cells at %d on one path and %d on another.", known, destination, depth));
+        }
+    }
+
+    // change of the stack pointer
+    private int stackEffect(Instr instr){
+        switch(instr.opcode()){
+            case Instr.LOADC:
+            case Instr.LOADRC:
+            case Instr.LOADR:
+                return 1;
+            case Instr.MARK:
+                return 2;
+            case Instr.ALLOC:
+                return ((Instr.Alloc) instr).k;
+            case Instr.INVOKE:
+            case Instr.MEMO_INVOKE:
+                return 1 - ((Instr.Invoke) instr).m;
+            case Instr.TAIL_INVOKE:
+                return -((Instr.TailInvoke) instr).m;
+            case Instr.SLIDE:
+                return -((Instr.Slide) instr).m;
+            case Instr.STORE:
+            case Instr.POP:
+            case Instr.FREE:
+            case Instr.PRINT:
+            case Instr.JUMPZ:
+            case Instr.STORER_POP:
+            case Instr.ADD:
+            case Instr.SUB:
+            case Instr.MUL:
+            case Instr.DIV:
+            case Instr.MOD:
+            case Instr.LESS:
+            case Instr.LESS_OR_EQUAL:
+            case Instr.GREATER:
+            case Instr.GREATER_OR_EQUAL:
+            case Instr.EQUAL:
+            case Instr.UNEQUAL:
+            case Instr.AND:
+            case Instr.OR:
+                return -1;
+            case Instr.STORE_POP:
+            case Instr.LESS_JUMPZ:
+                return -2;
+            default:
+                return 0;
+        }
+    }
+
+    // numbers the labels in the order of their positions and patches every jump with the number of its label
+    // the assembler must not be used afterward, the code takes over its instructions
+    public Code finish(){
+
+        Code code = new Code();
+
+        for(int i = 0; i < boundLabels.size(); i++){
+            boundLabels.get(i).number = i;
+            code.jumpTable.put(i, boundLabels.get(i).position);
+        }
+
+        for(int i = 0; i < instructions.size(); i++){
+
+            Label destination = jumpDestinations.get(i);
+            if(destination == null){
+                continue;
+            }
+
+            if(destination.position == -1){
+                throw new RuntimeException(String.format("'%s' at %d jumps to a label that was never bound.", instructions.get(i), i));
+            }
+
+            Instr jump = instructions.get(i);
+            if(jump instanceof Instr.JumpZ){
+                ((Instr.JumpZ) jump).jumpLabel = destination.number;
+            }
+            else if(jump instanceof Instr.Jump){
+                ((Instr.Jump) jump).jumpLabel = destination.number;
+            }
+            else if(jump instanceof Instr.LessJumpZ){
+                ((Instr.LessJumpZ) jump).jumpLabel = destination.number;
+            }
+        }
+
+        code.instructions = instructions;
+        code.functionNamesToCodeStart.putAll(functionNamesToCodeStart);
+
+        return code;
+    }
+}
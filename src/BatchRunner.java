@@ -0,0 +1,267 @@
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+
+// loads and runs many .cma (or .cmb) programs at the same time, each on its own VM with its own output,
+// and prints a summary per program (status, exit code, instructions, wall time including loading)
+// usage: BatchRunner [-parallelism n] [-virtual] [-count] [-jit] [-output dir] (file | directory | glob)...
+//   a directory stands for the programs in it, a glob like "tests/**/*.cma" is matched below the part in front of the first wildcard,
+//   a program with both a .cma and a .cmb (CompileCode writes both) runs once, from the .cmb
+//   -virtual: one virtual thread per program instead of a fork-join pool (at most n of them run at the same time)
+//   -count: exact instruction counts with an ExecutionProfiler (interpreter only, slower), otherwise the fuel used is shown
+//   -output: writes the output of each program to dir/<name>.out (e.g. primes.out) instead of printing it
+// exits with 1 if a program failed or didn't halt
+public class BatchRunner {
+
+    int parallelism = Runtime.getRuntime().availableProcessors();
+    boolean useVirtualThreads;
+    boolean countInstructions;
+    boolean jitEnabled;
+
+    // idle VMs keep their stacks (and heaps) for the next program
+    VirtualMachinePool vms = new VirtualMachinePool(this::createVirtualMachine);
+
+    static class ProgramRun {
+
+        final Path file;
+
+        // null if loading or running the program threw
+        ExecutionResult result;
+        String failure;
+
+        // everything the program printed (also when it failed)
+        String output = "";
+
+        // -1 without countInstructions
+        long instructionCount = -1;
+
+        long wallNanos;
+
+        ProgramRun(Path file){
+            this.file = file;
+        }
+
+        boolean isHalted(){
+            return result != null && result.isHalted();
+        }
+
+        String status(){
+            return result != null ? result.status.toString() : "FAILED";
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        BatchRunner runner = new BatchRunner();
+        Path outputDirectory = null;
+        List<Path> files = new ArrayList<>();
+
+        for(int i = 0; i < args.length; i++){
+            switch(args[i]){
+                case "-parallelism" -> runner.parallelism = Integer.parseInt(args[++i]);
+                case "-virtual" -> runner.useVirtualThreads = true;
+                case "-count" -> runner.countInstructions = true;
+                case "-jit" -> runner.jitEnabled = true;
+                case "-output" -> outputDirectory = Path.of(args[++i]);
+                default -> files.addAll(expand(args[i]));
+            }
+        }
+
+        if(files.isEmpty()){
+            System.out.println(args.length == 0 ? "usage: BatchRunner [-parallelism n] [-virtual] [-count] [-jit] [-output dir] (file | directory | glob)..."
+                    : "No programs found.");
+            System.exit(1);
+        }
+
+        long start = System.nanoTime();
+        List<ProgramRun> runs = runner.run(files);
+        long elapsedNanos = System.nanoTime() - start;
+
+        if(outputDirectory != null){
+            Files.createDirectories(outputDirectory);
+
+            for(ProgramRun run : runs){
+                Files.writeString(outputDirectory.resolve(programName(run.file) + ".out"), run.output);
+            }
+        }
+        else{
+            for(ProgramRun run : runs){
+                System.out.println("== " + run.file);
+                System.out.print(run.output);
+            }
+        }
+
+        System.out.print(summary(runs, elapsedNanos));
+
+        if(!runs.stream().allMatch(ProgramRun::isHalted)){
+            System.exit(1);
+        }
+    }
+
+    // in the order of the files, whatever order they finished in
+    public List<ProgramRun> run(List<Path> files){
+
+        // also bounds the virtual threads, which would otherwise all start at once
+        Semaphore running = new Semaphore(parallelism);
+
+        try (ExecutorService executor = useVirtualThreads ? Executors.newVirtualThreadPerTaskExecutor() : new ForkJoinPool(parallelism)) {
+
+            List<Future<ProgramRun>> futures = new ArrayList<>();
+            for(Path file : files){
+                futures.add(executor.submit(() -> {
+                    running.acquire();
+                    try {
+                        return runProgram(file);
+                    } finally {
+                        running.release();
+                    }
+                }));
+            }
+
+            List<ProgramRun> runs = new ArrayList<>();
+            for(Future<ProgramRun> future : futures){
+                runs.add(future.get());
+            }
+            return runs;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("The batch run was interrupted.", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("A program of the batch could not be run.", e.getCause());
+        }
+    }
+
+    ProgramRun runProgram(Path file){
+
+        ProgramRun run = new ProgramRun(file);
+        long start = System.nanoTime();
+
+        VirtualMachine vm = vms.acquire();
+        OutputSink.MemorySink output = new OutputSink.MemorySink();
+        vm.output = output;
+        vm.profiler = countInstructions ? new ExecutionProfiler() : null;
+
+        try {
+            ProgramImage image = ProgramImage.load(file.toString());
+            run.result = vm.execute(image);
+        } catch (RuntimeException e) {
+            run.failure = e.getMessage() != null ? e.getMessage() : e.toString();
+        } finally {
+            if(vm.profiler != null){
+                run.instructionCount = vm.profiler.instructionCount;
+                vm.profiler = null;
+            }
+            vms.release(vm);
+        }
+
+        run.output = output.text();
+        run.wallNanos = System.nanoTime() - start;
+
+        return run;
+    }
+
+    private VirtualMachine createVirtualMachine(){
+        VirtualMachine vm = new VirtualMachine();
+        vm.jitEnabled = jitEnabled;
+        return vm;
+    }
+
+    // a table with one line per program and the totals
+    static String summary(List<ProgramRun> runs, long elapsedNanos){
+
+        StringBuilder res = new StringBuilder();
+        res.append(String.format("%-40s %-20s %10s %14s %12s\n", "program", "status", "exit code", "instructions", "wall ms"));
+
+        long halted = 0;
+        long totalNanos = 0;
+
+        for(ProgramRun run : runs){
+
+            String instructions = run.instructionCount >= 0 ? Long.toString(run.instructionCount)
+                    : run.result != null ? "~" + run.result.fuelUsed : "-";
+
+            res.append(String.format("%-40s %-20s %10s %14s %12.3f\n", run.file, run.status(),
+                    run.result != null ? Integer.toString(run.result.exitCode) : "-", instructions, run.wallNanos / 1e6));
+
+            if(run.failure != null){
+                res.append("    ").append(run.failure).append("\n");
+            }
+
+            if(run.isHalted()){
+                halted++;
+            }
+            totalNanos += run.wallNanos;
+        }
+
+        res.append(String.format("%d programs, %d halted, %d failed or stopped in %.3f ms (%.3f ms summed over the programs)\n",
+                runs.size(), halted, runs.size() - halted, elapsedNanos / 1e6, totalNanos / 1e6));
+
+        return res.toString();
+    }
+
+    // a file, the programs of a directory, or the files matching a glob
+    static List<Path> expand(String argument) throws IOException {
+
+        int wildcard = firstWildcard(argument);
+
+        if(wildcard < 0){
+            Path path = Path.of(argument);
+
+            if(!Files.isDirectory(path)){
+                return List.of(path);
+            }
+
+            try (Stream<Path> paths = Files.list(path)) {
+                return onePerProgram(paths.filter(file -> file.toString().endsWith(".cma") || file.toString().endsWith(".cmb")));
+            }
+        }
+
+        // only the directory in front of the first wildcard is walked
+        int separator = argument.lastIndexOf('/', wildcard);
+        Path base = Path.of(separator < 0 ? "" : argument.substring(0, separator + 1));
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + argument);
+
+        try (Stream<Path> paths = Files.walk(base)) {
+            return onePerProgram(paths.filter(file -> Files.isRegularFile(file) && matcher.matches(file)));
+        }
+    }
+
+    // sorted by name, x.cma is left out if there is an x.cmb (the same program, loads without parsing)
+    private static List<Path> onePerProgram(Stream<Path> files){
+
+        Map<Path, Path> programs = new TreeMap<>();
+
+        files.forEach(file -> programs.merge(file.resolveSibling(programName(file)), file,
+                (one, other) -> one.toString().endsWith(".cmb") ? one : other));
+
+        return new ArrayList<>(programs.values());
+    }
+
+    // primes.cma and primes.cmb -> primes
+    static String programName(Path file){
+        return file.getFileName().toString().replaceFirst("\\.cm[ab]$", "");
+    }
+
+    private static int firstWildcard(String argument){
+        for(int i = 0; i < argument.length(); i++){
+            if("*?[{".indexOf(argument.charAt(i)) >= 0){
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -1,11 +1,17 @@
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.lang.reflect.Constructor;
-import java.util.Set;
-import java.util.HashSet;
+import java.nio.file.Path;
+import java.util.function.BiFunction;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
 
 public class Code {
 
@@ -16,49 +22,63 @@ public class Code {
 
     boolean printMerges = false;
 
-    static List<Class<? extends Instr>> classes = new ArrayList<>();
+    // mnemonic -> parser of the argument, one lookup per line instead of trying every instruction (see ListingLoader)
+    static Map<String, ListingLoader.InstructionParser> mnemonics = new HashMap<>();
 
     static {
-        classes.add(Instr.Halt.class);
-        classes.add(Instr.Enter.class);
-        classes.add(Instr.Mark.class);
-        classes.add(Instr.Call.class);
-        classes.add(Instr.Return.class);
-        classes.add(Instr.Slide.class);
-        classes.add(Instr.LoadRC.class);
-        classes.add(Instr.LoadC.class);
+        mnemonics.put("Halt", noArgument(Instr.Halt::new));
+        mnemonics.put("Enter", intArgument(Instr.Enter::new));
+        mnemonics.put("Mark", noArgument(Instr.Mark::new));
+        mnemonics.put("Call", noArgument(Instr.Call::new));
+        mnemonics.put("Invoke", functionArgument(Instr.Invoke::new));
+        mnemonics.put("TailInvoke", functionArgument(Instr.TailInvoke::new));
+        mnemonics.put("MemoInvoke", functionArgument(Instr.MemoInvoke::new));
+        mnemonics.put("Return", noArgument(Instr.Return::new));
+        mnemonics.put("Slide", intArgument(Instr.Slide::new));
+        mnemonics.put("LoadRC", intArgument(Instr.LoadRC::new));
+        mnemonics.put("LoadC", Code::parseLoadC);
 
         // binary
 
-        classes.add(Instr.Less.class);
-        classes.add(Instr.LessOrEqual.class);
-        classes.add(Instr.Greater.class);
-        classes.add(Instr.Equal.class);
-        classes.add(Instr.UnEqual.class);
-        classes.add(Instr.GreaterOrEqual.class);
+        mnemonics.put("Less", noArgument(Instr.Less::new));
+        mnemonics.put("LessOrEqual", noArgument(Instr.LessOrEqual::new));
+        mnemonics.put("Greater", noArgument(Instr.Greater::new));
+        mnemonics.put("Equal", noArgument(Instr.Equal::new));
+        mnemonics.put("UnEqual", noArgument(Instr.UnEqual::new));
+        mnemonics.put("GreaterOrEqual", noArgument(Instr.GreaterOrEqual::new));
 
-        classes.add(Instr.Add.class);
-        classes.add(Instr.Sub.class);
-        classes.add(Instr.Mul.class);
-        classes.add(Instr.Div.class);
-        classes.add(Instr.Mod.class);
+        mnemonics.put("Add", noArgument(Instr.Add::new));
+        mnemonics.put("Sub", noArgument(Instr.Sub::new));
+        mnemonics.put("Mul", noArgument(Instr.Mul::new));
+        mnemonics.put("Div", noArgument(Instr.Div::new));
+        mnemonics.put("Mod", noArgument(Instr.Mod::new));
 
-        classes.add(Instr.Or.class);
-        classes.add(Instr.And.class);
+        mnemonics.put("Or", noArgument(Instr.Or::new));
+        mnemonics.put("And", noArgument(Instr.And::new));
 
 
         // unary
-        classes.add(Instr.FlipSign.class);
-        classes.add(Instr.Neg.class);
-
-
-        classes.add(Instr.Store.class);
-        classes.add(Instr.Pop.class);
-        classes.add(Instr.Load.class);
-        classes.add(Instr.JumpZ.class);
-        classes.add(Instr.Jump.class);
-        classes.add(Instr.Print.class);
-        classes.add(Instr.Alloc.class);
+        mnemonics.put("FlipSign", noArgument(Instr.FlipSign::new));
+        mnemonics.put("Neg", noArgument(Instr.Neg::new));
+
+
+        mnemonics.put("Store", noArgument(Instr.Store::new));
+        mnemonics.put("Pop", noArgument(Instr.Pop::new));
+        mnemonics.put("Load", noArgument(Instr.Load::new));
+        mnemonics.put("JumpZ", intArgument(Instr.JumpZ::new));
+        mnemonics.put("Jump", intArgument(Instr.Jump::new));
+        mnemonics.put("Print", noArgument(Instr.Print::new));
+        mnemonics.put("Alloc", intArgument(Instr.Alloc::new));
+        mnemonics.put("Malloc", noArgument(Instr.Malloc::new));
+        mnemonics.put("Free", noArgument(Instr.Free::new));
+        mnemonics.put("Snapshot", noArgument(Instr.Snapshot::new));
+
+        // superinstructions
+        mnemonics.put("LoadR", intArgument(Instr.LoadR::new));
+        mnemonics.put("StoreRPop", intArgument(Instr.StoreRPop::new));
+        mnemonics.put("StorePop", noArgument(Instr.StorePop::new));
+        mnemonics.put("AddC", intArgument(Instr.AddC::new));
+        mnemonics.put("LessJumpZ", intArgument(Instr.LessJumpZ::new));
     }
 
     public Code(){
@@ -75,132 +95,37 @@ public class Code {
     public Code(String fileName){
         this();
 
-        List<String> lines = getLines(fileName);
-
-        linesToInstructions(lines);
-    }
-
-    private List<String> getLines(String fileName){
-        List<String> lines = new ArrayList<>();
-
-        try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                lines.add(line);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return lines;
-    }
-
-    private void linesToInstructions(List<String> lines){
-        for(String line : lines){
-            lineToInstruction(line);
-        }
-    }
-
-    private void lineToInstruction(String line){
-        String[] splitBySpace = line.split(" ");
-
-        // first one that is not jump label information must be instruction
-        int indexOfInstruction = 0;
-        for(int i = 0; i < splitBySpace.length; i++){
-            if(!splitBySpace[i].contains(":")){
-                indexOfInstruction = i;
-                break;
-            }
-        }
-
-        for(int i = 0; i < indexOfInstruction; i++){
-            jumpLabelFromString(splitBySpace[i]);
-        }
-
-        String instructionName = splitBySpace[indexOfInstruction];
-
-        String argument = splitBySpace.length > indexOfInstruction + 1 ? splitBySpace[indexOfInstruction + 1] : null;
-        for(int i = indexOfInstruction + 2; i < splitBySpace.length; i++){
-            argument += (" " + splitBySpace[i]);
-        }
-
-        Instr instruction = createInstanceIfMatch(instructionName, Code.classes, argument);
-
-        if(instruction == null){
-            throw new RuntimeException(String.format("Could not parse %s\n", line));
-        }
+        ListingLoader.load(Path.of(fileName), this);
 
-        instructions.add(instruction);
+        link();
     }
 
-    public Instr createInstanceIfMatch(String targetString, List<Class<? extends Instr>> classes, String argument) {
-        for (Class<? extends Instr> clazz : classes) {
-            try {
-                Instr tempInstance;
-
-                if (argument != null) {
-                    if (isStringArgument(argument)) {
-                        tempInstance = createInstanceWithStringArgument(clazz, argument);
-                    } else {
-                        tempInstance = createInstanceWithIntOrObjectArgument(clazz, argument);
-                    }
-                } else {
-                    tempInstance = createInstanceWithNoArgument(clazz);
-                }
-
-                if (tempInstance.toString().equals(targetString + (argument == null ? "" : " " + argument))) {
-                    return tempInstance;
-                }
-            } catch (Exception e) {
-                // Optionally log the exception
+    private static ListingLoader.InstructionParser noArgument(Supplier<Instr> constructor){
+        return cursor -> {
+            if(cursor.hasArgument()){
+                throw new RuntimeException("The instruction takes no argument.");
             }
-        }
-        return null;
+            return constructor.get();
+        };
     }
 
-    private boolean isStringArgument(String argument) {
-        return argument.startsWith("'") && argument.endsWith("'");
-    }
-
-    private Instr createInstanceWithStringArgument(Class<? extends Instr> clazz, String argument) throws Exception {
-        String arg = argument.substring(1, argument.length() - 1); // Remove quotes
-        return clazz.getDeclaredConstructor(Object.class).newInstance(arg);
-    }
-
-    private Instr createInstanceWithIntOrObjectArgument(Class<? extends Instr> clazz, String argument) throws Exception {
-
-        // this shouldn't fail
-        int intArg = Integer.parseInt(argument);
-
-        try {
-            return clazz.getDeclaredConstructor(int.class).newInstance(intArg);
-        } catch (Exception e) {
-            // If parsing fails, try creating an instance with an Object constructor
-            return clazz.getDeclaredConstructor(Object.class).newInstance(intArg);
-        }
+    private static ListingLoader.InstructionParser intArgument(IntFunction<Instr> constructor){
+        return cursor -> constructor.apply(cursor.readInt());
     }
 
-    private Instr createInstanceWithNoArgument(Class<? extends Instr> clazz) throws Exception {
-        return clazz.getDeclaredConstructor().newInstance();
+    // 'name' m
+    private static ListingLoader.InstructionParser functionArgument(BiFunction<String, Integer, Instr> constructor){
+        return cursor -> constructor.apply(cursor.readQuotedName(), cursor.readInt());
     }
 
-    private void jumpLabelFromString(String jumpInformation){
-
-        // cut away the :
-        jumpInformation = jumpInformation.substring(0, jumpInformation.length() - 1);
+    // a number or a string in '...'
+    private static Instr parseLoadC(ListingLoader.Cursor cursor){
 
-        if(isFunctionName(jumpInformation)){
-
-            // the instruction is added afterward and then the jump label points to the index (because size increases by 1)
-            functionNamesToCodeStart.put(jumpInformation, instructions.size());
-        }
-        else{
-            jumpTable.put(Integer.parseInt(jumpInformation), instructions.size());
+        if(cursor.isQuotedToEnd()){
+            return new Instr.LoadC(cursor.readQuotedToEnd());
         }
-    }
 
-    private boolean isFunctionName(String jumpInformation){
-        char c = jumpInformation.charAt(0);
-        return ('a' <= c && c <= 'z') || ('A' <= c && c <= 'Z');
+        return new Instr.LoadC(cursor.readInt());
     }
 
     public int addJumpLabelAtEnd(){
@@ -225,6 +150,8 @@ public class Code {
         functionNamesToCodeStart.put(functionName, indexOfEnd);
     }
 
+    // appends the labels of the code after to the first table (numbered behind the labels already there)
+    // and renumbers the jumps of the code after to match, in one pass over its instructions
     public Map<Integer, Integer> mergeJumpTables(Map<Integer, Integer> first,
                                                  Map<Integer, Integer> second, List<Instr> instructionsAfter){
 
@@ -232,8 +159,6 @@ public class Code {
             return first;
         }
 
-        Map<Integer, Integer> merged = new HashMap<>(first);
-
         if(printMerges) {
             System.out.println("--- MERGE THOSE ---");
             printJumpTable(first);
@@ -244,40 +169,31 @@ public class Code {
         int offset = instructions.size();
         int jumpLabelOffset = first.size();
 
-        // keep that for which jump instructions the labels where swapped out
-        // needed because we modify them and iterate over them at the same time
-        // if we don't keep track, we could run into multiple unwanted substitutions
-        Set<Instr> alreadySubstituted = new HashSet<>();
-
-        for(Integer jumpLabel : second.keySet()){
-
-            int newJumpLabel = jumpLabelOffset + jumpLabel;
-            int newDestination = offset + second.get(jumpLabel);
+        // only jumps to labels of the code after are renumbered, each exactly once
+        for(Instr instr : instructionsAfter){
 
-            // replace old jump label in code that is appended
-            // only replace jump labels which match with old ones
-            for(Instr instr : instructionsAfter){
-
-                if(instr instanceof Instr.JumpZ && ((Instr.JumpZ) instr).jumpLabel == jumpLabel && !alreadySubstituted.contains(instr)){
-                    ((Instr.JumpZ) instr).jumpLabel = newJumpLabel;
-                    alreadySubstituted.add(instr);
-                }
-                else if (instr instanceof Instr.Jump && ((Instr.Jump) instr).jumpLabel == jumpLabel && !alreadySubstituted.contains(instr)){
-                    ((Instr.Jump) instr).jumpLabel = newJumpLabel;
-                    alreadySubstituted.add(instr);
-                }
+            if(instr instanceof Instr.JumpZ && second.containsKey(((Instr.JumpZ) instr).jumpLabel)){
+                ((Instr.JumpZ) instr).jumpLabel += jumpLabelOffset;
+            }
+            else if(instr instanceof Instr.Jump && second.containsKey(((Instr.Jump) instr).jumpLabel)){
+                ((Instr.Jump) instr).jumpLabel += jumpLabelOffset;
             }
+            else if(instr instanceof Instr.LessJumpZ && second.containsKey(((Instr.LessJumpZ) instr).jumpLabel)){
+                ((Instr.LessJumpZ) instr).jumpLabel += jumpLabelOffset;
+            }
+        }
 
-            merged.put(newJumpLabel, newDestination);
+        for(Map.Entry<Integer, Integer> label : second.entrySet()){
+            first.put(jumpLabelOffset + label.getKey(), offset + label.getValue());
         }
 
         if(printMerges){
             System.out.println("--- MERGED ---");
-            printJumpTable(merged);
+            printJumpTable(first);
             System.out.println("---");
         }
 
-        return merged;
+        return first;
     }
 
     public void addCode(Code codeAfter){
@@ -299,41 +215,124 @@ public class Code {
         instructions.addAll(codeAfter.instructions);
     }
 
+    // replaces the jump labels and function names of calls by absolute destinations
+    // so the VM doesn't need the jump or function table at runtime
+    // needs to run again after the code was changed
+    public void link(){
+
+        for(Instr instr : instructions){
+
+            if(instr instanceof Instr.Invoke){
+                ((Instr.Invoke) instr).target = resolveFunctionName(((Instr.Invoke) instr).functionName);
+            }
+            else if(instr instanceof Instr.JumpZ){
+                ((Instr.JumpZ) instr).target = resolveJumpLabel(((Instr.JumpZ) instr).jumpLabel);
+            }
+            else if(instr instanceof Instr.Jump){
+                ((Instr.Jump) instr).target = resolveJumpLabel(((Instr.Jump) instr).jumpLabel);
+            }
+            else if(instr instanceof Instr.LessJumpZ){
+                ((Instr.LessJumpZ) instr).target = resolveJumpLabel(((Instr.LessJumpZ) instr).jumpLabel);
+            }
+        }
+    }
+
+    private int resolveJumpLabel(int jumpLabel){
+
+        if(!jumpTable.containsKey(jumpLabel)){
+            throw new RuntimeException(String.format("Jump label %d is not defined.", jumpLabel));
+        }
+
+        return jumpTable.get(jumpLabel);
+    }
+
+    public int resolveFunctionName(String functionName){
+
+        if(!functionNamesToCodeStart.containsKey(functionName)){
+            throw new RuntimeException(String.format("Function '%s' is not defined.", functionName));
+        }
+
+        return functionNamesToCodeStart.get(functionName);
+    }
+
     public void addInstruction(Instr newInstruction){
         instructions.add(newInstruction);
     }
 
     public String toString(){
 
-        List<String> instructionRepresentations = new ArrayList<>();
+        StringWriter listing = new StringWriter();
 
-        for(Instr instr : instructions){
-            instructionRepresentations.add(instr.toString());
+        try {
+            writeListing(listing);
+        } catch (IOException e) {
+            // a StringWriter doesn't throw
+            throw new UncheckedIOException(e);
         }
 
-        // add the jump labels
-        for(Integer i : jumpTable.keySet()){
-            String stringRep = instructionRepresentations.get(jumpTable.get(i));
-            String newRep = String.format("%d: %s", i, stringRep);
-            instructionRepresentations.set(jumpTable.get(i), newRep);
-        }
+        return listing.toString();
+    }
 
-        // add the function labels
-        for(String functionName : functionNamesToCodeStart.keySet()){
+    // writes the listing line by line in one pass over the instructions, labels go in front of the instruction they point to
+    // (function name first, then the jump labels), nothing but the index of the labels is built up front
+    public void writeListing(Writer out) throws IOException {
 
-            int index = functionNamesToCodeStart.get(functionName);
+        int size = instructions.size();
 
-            String stringRep = instructionRepresentations.get(index);
-            String newRep = String.format("%s: %s", functionName, stringRep);
-            instructionRepresentations.set(index, newRep);
+        // pc -> jump labels: the labels of pc are labelNumbers[labelStarts[pc]] to labelNumbers[labelStarts[pc + 1] - 1]
+        int[] labelStarts = new int[size + 2];
+        for(int destination : jumpTable.values()){
+            if(destination < 0 || destination >= size){
+                throw new RuntimeException(String.format("A jump label points to %d, outside of the %d instructions.", destination, size));
+            }
+            labelStarts[destination + 2]++;
+        }
+        for(int pc = 2; pc < labelStarts.length; pc++){
+            labelStarts[pc] += labelStarts[pc - 1];
         }
 
-        return String.join("\n", instructionRepresentations);
+        int[] labelNumbers = new int[jumpTable.size()];
+        for(Map.Entry<Integer, Integer> label : jumpTable.entrySet()){
+            labelNumbers[labelStarts[label.getValue() + 1]++] = label.getKey();
+        }
+
+        Map<Integer, String> functionNamesByStart = new HashMap<>();
+        for(Map.Entry<String, Integer> function : functionNamesToCodeStart.entrySet()){
+            functionNamesByStart.put(function.getValue(), function.getKey());
+        }
+
+        for(int pc = 0; pc < size; pc++){
+
+            if(pc > 0){
+                out.write('\n');
+            }
+
+            String functionName = functionNamesByStart.get(pc);
+            if(functionName != null){
+                out.write(functionName);
+                out.write(": ");
+            }
+
+            // the highest number first, as the labels used to be prefixed one after the other
+            int from = labelStarts[pc];
+            int to = labelStarts[pc + 1];
+            if(to - from > 1){
+                Arrays.sort(labelNumbers, from, to);
+            }
+            for(int i = to - 1; i >= from; i--){
+                out.write(Integer.toString(labelNumbers[i]));
+                out.write(": ");
+            }
+
+            out.write(instructions.get(pc).toString());
+        }
     }
 
     public void saveToFile(String fileName){
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(fileName))) {
-            writer.write(toString());
+        try (FileChannel channel = FileChannel.open(Path.of(fileName),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             Writer writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8), 1 << 16)) {
+            writeListing(writer);
             System.out.println("File written successfully!");
         } catch (IOException e) {
             e.printStackTrace();
@@ -1,9 +1,14 @@
 import java.sql.SQLOutput;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-public class CodeGenerator implements Expr.Visitor<Code>, Stmt.Visitor<Code>{
+public class CodeGenerator implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
+
+    // the whole program is emitted into it in one pass
+    Assembler asm;
 
     Environment environment;
 
@@ -15,6 +20,23 @@ public class CodeGenerator implements Expr.Visitor<Code>, Stmt.Visitor<Code>{
 
     boolean insideFunction = false;
 
+    // cells taken by the parameters of the function being generated
+    int parameterCells;
+
+    // return f(...) reuses the frame of the current function (see tailCall)
+    boolean useTailCalls = true;
+    boolean tailCallsAllowed;
+
+    // & was used in the current function, its frame may be pointed to
+    boolean addressTaken;
+
+    // calls of pure functions become MemoInvoke (see PurityAnalysis)
+    boolean useMemoization = false;
+    Set<String> pureFunctions = new HashSet<>();
+
+    // replace frequent instruction sequences by superinstructions
+    boolean useSuperinstructions = true;
+
     static Map<String, Integer> dataTypeToSize = new HashMap<>();
 
     static {
@@ -30,56 +52,116 @@ public class CodeGenerator implements Expr.Visitor<Code>, Stmt.Visitor<Code>{
     // receives an abstract syntax tree
     public Code generateCode(Program program){
 
-        Code code = new Code();
+        if(useMemoization){
+            new PurityAnalysis().analyze(program);
 
-        // TODO: change size of global variables later when structs are added
-        int k = 0;
-        for(Stmt.VariableDeclaration varDecl : program.globalDeclarations){
-            code.addCode(code(varDecl));
-            k++;
+            for(Stmt.FunctionDeclaration funDecl : program.functionDeclarations){
+                if(funDecl.isPure){
+                    pureFunctions.add(funDecl.functionName);
+                }
+            }
         }
 
-        // call the main function
+        asm = new Assembler();
 
-        // reserve space for the return value
-        code.addInstruction(new Instr.LoadC(0));
+        emitEntry(program.globalDeclarations);
 
-        code.addInstruction(new Instr.Mark());
+        for(Stmt.FunctionDeclaration funDecl : program.functionDeclarations){
+            code(funDecl);
+        }
 
-        code.addInstruction(new Instr.LoadC("main"));
+        Code code = asm.finish();
 
-        code.addInstruction(new Instr.Call());
+        if(useSuperinstructions){
+            Superinstructions.fuse(code);
+        }
 
-        // destroy all global variables after the main call (first stack cell has return value)
-        code.addInstruction(new Instr.Slide(k));
+        code.link();
 
-        code.addInstruction(new Instr.Halt());
+        return code;
+    }
 
-        for(Stmt.FunctionDeclaration funDecl : program.functionDeclarations){
-            code.addCode(code(funDecl));
+    // the code in front of the functions, so the program can be compiled one function at a time (see CompileCache)
+    // the global variables stay declared for generateFunction
+    public Code generateEntry(List<Stmt.VariableDeclaration> globalDeclarations){
+
+        asm = new Assembler();
+        emitEntry(globalDeclarations);
+
+        return asm.finish();
+    }
+
+    // the code of one function with its own jump labels (numbered from 0), calls are resolved once it is appended (Code.addCode) and linked
+    public Code generateFunction(Stmt.FunctionDeclaration functionDeclaration){
+
+        asm = new Assembler();
+        code(functionDeclaration);
+
+        return asm.finish();
+    }
+
+    // one file of a program with several files, compiled on its own (see ObjectModule and Linker):
+    // the initialization of its global variables, then its functions, the linker puts the pieces of all files together
+    public ObjectModule generateModule(List<Stmt.VariableDeclaration> globalDeclarations, List<Stmt.FunctionDeclaration> functionDeclarations){
+
+        asm = new Assembler();
+
+        for(Stmt.VariableDeclaration varDecl : globalDeclarations){
+            code(varDecl);
         }
+        int initLength = asm.position();
 
-        return code;
+        for(Stmt.FunctionDeclaration funDecl : functionDeclarations){
+            code(funDecl);
+        }
+
+        List<Integer> globalAddresses = asm.globalAddresses;
+        Code code = asm.finish();
+
+        return new ObjectModule(code, initLength, n, globalAddresses);
+    }
+
+    // reserves the stack, initializes the global variables and calls main
+    private void emitEntry(List<Stmt.VariableDeclaration> globalDeclarations){
+
+        // the globals and the frame of main need to fit on the stack as well (known once the entry code is there)
+        Instr.Enter enter = new Instr.Enter(0);
+        asm.emit(enter);
+        int entryStart = asm.position();
+
+        for(Stmt.VariableDeclaration varDecl : globalDeclarations){
+            code(varDecl);
+        }
+
+        // call the main function
+        // destroy all global variables after the main call (first stack cell has return value), n cells as arrays take several
+        asm.emit(new Instr.Invoke("main", n));
+
+        asm.emit(new Instr.Halt());
+
+        enter.q = asm.maxStackDepth(entryStart);
     }
 
-    public Code code(Stmt statement){
-        return statement.accept(this);
+    public void code(Stmt statement){
+        statement.accept(this);
     }
 
-    public Code codeR(Expr expr){
-        return expr.accept(this, GenerationMode.R);
+    public void codeR(Expr expr){
+        expr.accept(this, GenerationMode.R);
     }
 
-    public Code codeL(Expr expr){
-        return expr.accept(this, GenerationMode.L);
+    public void codeL(Expr expr){
+        expr.accept(this, GenerationMode.L);
     }
 
     @Override
-    public Code visitLiteral(Expr.Literal literal, GenerationMode mode) {
+    public Void visitLiteral(Expr.Literal literal, GenerationMode mode) {
 
         checkNoLValue(mode, "Literal has no l-value.");
 
-        return new Code(List.of(new Instr.LoadC(literal.value)));
+        asm.emit(new Instr.LoadC(literal.value));
+
+        return null;
     }
 
     private void checkNoLValue(GenerationMode mode, String message){
@@ -89,119 +171,126 @@ public class CodeGenerator implements Expr.Visitor<Code>, Stmt.Visitor<Code>{
     }
 
     @Override
-    public Code visitBinary(Expr.BinOp binOp, GenerationMode mode) {
+    public Void visitBinary(Expr.BinOp binOp, GenerationMode mode) {
 
         checkNoLValue(mode, "Binary operation has no l-value");
 
-        Code left = codeR(binOp.left);
-        Code right = codeR(binOp.right);
-
-        left.addCode(right);
+        codeR(binOp.left);
+        codeR(binOp.right);
 
         switch(binOp.operator){
             case BinaryOperator.PLUS:
-                left.addInstruction(new Instr.Add());
+                asm.emit(new Instr.Add());
                 break;
             case BinaryOperator.MINUS:
-                left.addInstruction(new Instr.Sub());
+                asm.emit(new Instr.Sub());
                 break;
             case BinaryOperator.MUL:
-                left.addInstruction(new Instr.Mul());
+                asm.emit(new Instr.Mul());
                 break;
             case BinaryOperator.DIV:
-                left.addInstruction(new Instr.Div());
+                asm.emit(new Instr.Div());
                 break;
             case BinaryOperator.MOD:
-                left.addInstruction(new Instr.Mod());
+                asm.emit(new Instr.Mod());
                 break;
             case BinaryOperator.LESS:
-                left.addInstruction(new Instr.Less());
+                asm.emit(new Instr.Less());
                 break;
             case BinaryOperator.LESS_EQUAL:
-                left.addInstruction(new Instr.LessOrEqual());
+                asm.emit(new Instr.LessOrEqual());
                 break;
             case BinaryOperator.EQUAL:
-                left.addInstruction(new Instr.Equal());
+                asm.emit(new Instr.Equal());
                 break;
             case BinaryOperator.UNEQUAL:
-                left.addInstruction(new Instr.UnEqual());
+                asm.emit(new Instr.UnEqual());
                 break;
             case BinaryOperator.GREATER_EQUAL:
-                left.addInstruction(new Instr.GreaterOrEqual());
+                asm.emit(new Instr.GreaterOrEqual());
                 break;
             case BinaryOperator.GREATER:
-                left.addInstruction(new Instr.Greater());
+                asm.emit(new Instr.Greater());
                 break;
             case BinaryOperator.AND:
-                left.addInstruction(new Instr.And());
+                asm.emit(new Instr.And());
                 break;
             case BinaryOperator.OR:
-                left.addInstruction(new Instr.Or());
+                asm.emit(new Instr.Or());
                 break;
             default:
                 throw new RuntimeException("Unknown operator");
         }
 
-        return left;
+        return null;
     }
 
     @Override
-    public Code visitVariableExpr(Expr.VariableExpr variableExpr, GenerationMode mode) {
-
-        Code code = new Code();
+    public Void visitVariableExpr(Expr.VariableExpr variableExpr, GenerationMode mode) {
 
         Pair<Visibility, Integer> p = environment.getVisibilityAndAddress(variableExpr.varName);
         Visibility v = p.key();
         Integer address = p.value();
 
         if(v == Visibility.G){
-            code.addInstruction(new Instr.LoadC(address));
+            asm.emitGlobalAddress(address);
         }
         else{
-            code.addInstruction(new Instr.LoadRC(address));
+            asm.emit(new Instr.LoadRC(address));
         }
 
         if(mode == GenerationMode.R){
-            code.addInstruction(new Instr.Load());
+            asm.emit(new Instr.Load());
         }
 
-        return code;
+        return null;
     }
 
     @Override
-    public Code visitArrayAccessExpr(Expr.ArrayAccessExpr arrayAccessExpr, GenerationMode mode) {
-
-        // base + index * block size
-        Code code = codeL(arrayAccessExpr.arrayExpr);
+    public Void visitArrayAccessExpr(Expr.ArrayAccessExpr arrayAccessExpr, GenerationMode mode) {
 
         String arrayVarName = arrayAccessExpr.arrayExpr.varName;
+        String arrayType = environment.getType(arrayVarName);
+
+        // base + index * block size
+        // an array starts at its own address, a pointer (e.g. from malloc) at the address it holds
+        if(arrayType.endsWith("*")){
+            codeR(arrayAccessExpr.arrayExpr);
+        }
+        else{
+            codeL(arrayAccessExpr.arrayExpr);
+        }
 
-        int blockSize = dataTypeToSize.get(getBaseType(environment.getType(arrayVarName)));
-        code.addInstruction(new Instr.LoadC(blockSize));
+        int blockSize = dataTypeToSize.get(getBaseType(arrayType));
+        asm.emit(new Instr.LoadC(blockSize));
 
-        code.addCode(codeR(arrayAccessExpr.indexExpr));
+        codeR(arrayAccessExpr.indexExpr);
 
-        code.addInstruction(new Instr.Mul());
-        code.addInstruction(new Instr.Add());
+        asm.emit(new Instr.Mul());
+        asm.emit(new Instr.Add());
 
         if(mode == GenerationMode.R){
-            code.addInstruction(new Instr.Load());
+            asm.emit(new Instr.Load());
         }
 
-        return code;
+        return null;
     }
 
     @Override
-    public Code visitAddressExpr(Expr.AddressExpr expr, GenerationMode mode) {
+    public Void visitAddressExpr(Expr.AddressExpr expr, GenerationMode mode) {
 
         checkNoLValue(mode, "address expression (&) has no l -value");
 
+        addressTaken = true;
+
         // gives the l code (the address) of the expression
-        return codeL(expr.expr);
+        codeL(expr.expr);
+
+        return null;
     }
 
     @Override
-    public Code visitDeRefExpr(Expr.DeRefExpr expr, GenerationMode mode) {
+    public Void visitDeRefExpr(Expr.DeRefExpr expr, GenerationMode mode) {
 
         // r value is easy, just load the l value
         // what about l value of a *p ?
@@ -209,182 +298,195 @@ public class CodeGenerator implements Expr.Visitor<Code>, Stmt.Visitor<Code>{
         // normally the l-value of the pointer is its address (where the pointer is stored)
         // with * we dereference it and say, give me the l-value of what the pointer is pointing to
         // the pointer value is the
-        Code code = codeR(expr.expr);
+        codeR(expr.expr);
 
         if(mode == GenerationMode.R){
-            code.addInstruction(new Instr.Load());
+            asm.emit(new Instr.Load());
         }
 
-        return code;
+        return null;
     }
 
     @Override
-    public Code visitCallExpr(Expr.CallExpr expr, GenerationMode mode) {
+    public Void visitCallExpr(Expr.CallExpr expr, GenerationMode mode) {
 
         checkNoLValue(mode, "Function evaluation has no l-value");
 
-        Code code = new Code();
-
         // load the parameters on the stack (left most parameter should be on top)
         int m = 0;
         for(Expr parameterExpr : expr.parameterExpressions.reversed()){
-            code.addCode(codeR(parameterExpr));
+            codeR(parameterExpr);
 
             // TODO: adjust (we can pass structs and they get copied by value)
             m++;
         }
 
-        // for the return value
-        code.addInstruction(new Instr.LoadC(0));
+        // reserves the return value, saves the EP and the old frame pointer and calls the function
+        // after return, the return value sits on top of the stack
+        // and the parameter values are deleted to get back to initial configuration
+        if(pureFunctions.contains(expr.functionName)){
+            asm.emit(new Instr.MemoInvoke(expr.functionName, m));
+        }
+        else{
+            asm.emit(new Instr.Invoke(expr.functionName, m));
+        }
 
-        // this saves the EP and the old frame pointer?
-        code.addInstruction(new Instr.Mark());
+        return null;
+    }
 
-        code.addInstruction(new Instr.LoadC(expr.functionName));
+    @Override
+    public Void visitNegatedExpr(Expr.NegatedExpr expr, GenerationMode mode) {
 
-        code.addInstruction(new Instr.Call());
+        checkNoLValue(mode, "negated expression (!) has no l-value");
 
-        // after return, the return value sits on top of the stack
-        // we need to delete the parameter values to get back to initial configuration
-        code.addInstruction(new Instr.Slide(m));
+        codeR(expr.expr);
+        asm.emit(new Instr.Neg());
 
-        return code;
+        return null;
     }
 
     @Override
-    public Code visitNegatedExpr(Expr.NegatedExpr expr, GenerationMode mode) {
-
-        checkNoLValue(mode, "negated expression (!) has no l-value");
+    public Void visitUnaryMinusExpr(Expr.UnaryMinusExpr expr, GenerationMode mode) {
 
-        Code code = new Code();
+        checkNoLValue(mode, "unary minus expression has no l-value");
 
-        code.addCode(codeR(expr.expr));
-        code.addInstruction(new Instr.Neg());
+        codeR(expr.expr);
+        asm.emit(new Instr.FlipSign());
 
-        return code;
+        return null;
     }
 
     @Override
-    public Code visitUnaryMinusExpr(Expr.UnaryMinusExpr expr, GenerationMode mode) {
+    public Void visitMallocExpr(Expr.MallocExpr expr, GenerationMode mode) {
 
-        checkNoLValue(mode, "unary minus expression has no l-value");
+        checkNoLValue(mode, "malloc has no l-value");
 
-        Code code = new Code();
-        code.addCode(codeR(expr.expr));
-        code.addInstruction(new Instr.FlipSign());
+        codeR(expr.size);
+        asm.emit(new Instr.Malloc());
 
-        return code;
+        return null;
     }
 
     @Override
-    public Code visitAssignExpr(Expr.AssignExpr assignExpr, GenerationMode mode) {
+    public Void visitAssignExpr(Expr.AssignExpr assignExpr, GenerationMode mode) {
 
         checkNoLValue(mode, "assignment expression has no l-value");
 
-        Code value = codeR(assignExpr.value);
+        codeR(assignExpr.value);
 
         // if the target has no l-value, the assignment code generation fails
-        value.addCode(codeL(assignExpr.target));
-        value.addInstruction(new Instr.Store());
+        codeL(assignExpr.target);
+        asm.emit(new Instr.Store());
 
-        return value;
+        return null;
     }
 
     @Override
-    public Code visitExpressionStatement(Stmt.ExpressionStatement e) {
+    public Void visitExpressionStatement(Stmt.ExpressionStatement e) {
 
-        Code exprCode = codeR(e.expr);
-        exprCode.addInstruction(new Instr.Pop());
+        codeR(e.expr);
+        asm.emit(new Instr.Pop());
 
-        return exprCode;
+        return null;
     }
 
     @Override
-    public Code visitIfStatement(Stmt.IfStatement ifStatement) {
+    public Void visitIfStatement(Stmt.IfStatement ifStatement) {
 
         if(ifStatement.elseBranch != null){
             if(ifStatement.ifBranch == null){
                 throw new RuntimeException("Needs to have an if branch to have an else branch");
             }
 
-            return translateIfElse(ifStatement);
+            translateIfElse(ifStatement);
+        }
+        else{
+            translateIfWithoutElse(ifStatement);
         }
 
-        return translateIfWithoutElse(ifStatement);
+        return null;
     }
 
-    private Code translateIfWithoutElse(Stmt.IfStatement ifStatement){
-        Code code = codeR(ifStatement.condition);
+    private void translateIfWithoutElse(Stmt.IfStatement ifStatement){
+        codeR(ifStatement.condition);
 
-        Instr.JumpZ jumpOverIfBlock = new Instr.JumpZ(-1);
-        code.addInstruction(jumpOverIfBlock);
+        Assembler.Label afterIfBlock = asm.newLabel();
+        asm.emitJump(new Instr.JumpZ(-1), afterIfBlock);
 
-        Code ifCode = code(ifStatement.ifBranch);
-        code.addCode(ifCode);
+        code(ifStatement.ifBranch);
 
-        // now we can create the jump label and set it
-        int jumpLabel = code.addJumpLabelAtEnd();
-        jumpOverIfBlock.jumpLabel = jumpLabel;
-
-        return code;
+        // now the destination is known
+        asm.bind(afterIfBlock);
     }
 
-    private Code translateIfElse(Stmt.IfStatement ifStatement){
+    private void translateIfElse(Stmt.IfStatement ifStatement){
 
-        Code code = codeR(ifStatement.condition);
+        codeR(ifStatement.condition);
 
-        Instr.JumpZ jumpToElse = new Instr.JumpZ(-1);
-        code.addInstruction(jumpToElse);
+        Assembler.Label elseBlock = asm.newLabel();
+        asm.emitJump(new Instr.JumpZ(-1), elseBlock);
 
-        Code ifCode = code(ifStatement.ifBranch);
-        code.addCode(ifCode);
+        code(ifStatement.ifBranch);
 
-        Instr.Jump jumpOverElse = new Instr.Jump(-1);
-        code.addInstruction(jumpOverElse);
+        Assembler.Label afterElseBlock = asm.newLabel();
+        asm.emitJump(new Instr.Jump(-1), afterElseBlock);
 
-        jumpToElse.jumpLabel = code.addJumpLabelAtEnd();
+        asm.bind(elseBlock);
 
-        code.addCode(code(ifStatement.elseBranch));
-        jumpOverElse.jumpLabel = code.addJumpLabelAtEnd();
+        code(ifStatement.elseBranch);
+        asm.bind(afterElseBlock);
+    }
 
-        return code;
+    @Override
+    public Void visitSnapshotStatement(Stmt.SnapshotStatement snapshotStatement) {
+
+        asm.emit(new Instr.Snapshot());
+
+        return null;
+    }
+
+    @Override
+    public Void visitFreeStatement(Stmt.FreeStatement freeStatement) {
+
+        codeR(freeStatement.expr);
+        asm.emit(new Instr.Free());
+
+        return null;
     }
 
     @Override
-    public Code visitBlockStatement(Stmt.BlockStatement blockStatement) {
-        Code code = new Code();
+    public Void visitBlockStatement(Stmt.BlockStatement blockStatement) {
 
         for(Stmt instruction : blockStatement.statements){
-            code.addCode(code(instruction));
+            code(instruction);
         }
 
-        return code;
+        return null;
     }
 
     @Override
-    public Code visitPrintStatement(Stmt.PrintStatement printStatement) {
+    public Void visitPrintStatement(Stmt.PrintStatement printStatement) {
 
-        Code code = codeR(printStatement.expr);
-        code.addInstruction(new Instr.Print());
+        codeR(printStatement.expr);
+        asm.emit(new Instr.Print());
 
-        return code;
+        return null;
     }
 
     @Override
-    public Code visitWhileStatement(Stmt.WhileStatement whileStatement) {
+    public Void visitWhileStatement(Stmt.WhileStatement whileStatement) {
 
-        Code code = new Code();
-        int jumpLabelBeforeCondition = code.addJumpLabelAtEnd();
+        Assembler.Label beforeCondition = asm.bindNewLabel();
 
-        code.addCode(codeR(whileStatement.condition));
-        Instr.JumpZ jumpOverBody = new Instr.JumpZ(-1);
-        code.addInstruction(jumpOverBody);
+        codeR(whileStatement.condition);
+        Assembler.Label afterBody = asm.newLabel();
+        asm.emitJump(new Instr.JumpZ(-1), afterBody);
 
-        code.addCode(code(whileStatement.body));
-        code.addInstruction(new Instr.Jump(jumpLabelBeforeCondition));
-        jumpOverBody.jumpLabel = code.addJumpLabelAtEnd();
+        code(whileStatement.body);
+        asm.emitJump(new Instr.Jump(-1), beforeCondition);
+        asm.bind(afterBody);
 
-        return code;
+        return null;
     }
 
     private String getBaseType(String typeName){
@@ -395,7 +497,7 @@ public class CodeGenerator implements Expr.Visitor<Code>, Stmt.Visitor<Code>{
     }
 
     @Override
-    public Code visitVariableDeclaration(Stmt.VariableDeclaration variableDeclaration) {
+    public Void visitVariableDeclaration(Stmt.VariableDeclaration variableDeclaration) {
 
         String typeName = variableDeclaration.type;
         String varName = variableDeclaration.variableName;
@@ -406,6 +508,7 @@ public class CodeGenerator implements Expr.Visitor<Code>, Stmt.Visitor<Code>{
 
         // variable is saved (starting from address n)
         if(insideFunction){
+            // the cell was allocated with the frame (see visitFunctionDeclaration)
             environment.define(typeName, varName, Visibility.L, l);
             l += k;
         }
@@ -413,26 +516,53 @@ public class CodeGenerator implements Expr.Visitor<Code>, Stmt.Visitor<Code>{
             // global variable
             environment.define(typeName, varName, Visibility.G, n);
             n += k;
-        }
 
-        Code code = new Code();
-        code.addInstruction(new Instr.Alloc(k));
+            asm.emit(new Instr.Alloc(k));
+        }
 
         if(variableDeclaration.initializer != null){
 
-            code.addCode(code(
+            code(
                     new Stmt.ExpressionStatement(new Expr.AssignExpr(new Expr.VariableExpr(varName), variableDeclaration.initializer))
-            ));
+            );
         }
 
-        return code;
+        return null;
     }
 
     @Override
-    public Code visitFunctionDeclaration(Stmt.FunctionDeclaration functionDeclaration) {
+    public Void visitFunctionDeclaration(Stmt.FunctionDeclaration functionDeclaration) {
+
+        asm.function(functionDeclaration.functionName);
+
+        // the stack overflow check happens once when the function is entered (the depth is set once the body is there)
+        Instr.Enter enter = new Instr.Enter(0);
+        asm.emit(enter);
+        int frameStart = asm.position();
 
-        Code code = new Code();
-        code.registerFunction(functionDeclaration.functionName);
+        // one Alloc for all locals, so the frame has the same size wherever they are declared (e.g. inside a loop)
+        int localCells = localCells(functionDeclaration.body);
+        if(localCells > 0){
+            asm.emit(new Instr.Alloc(localCells));
+        }
+        int bodyStart = asm.position();
+
+        tailCallsAllowed = true;
+        functionBody(functionDeclaration);
+
+        // a tail call overwrites the frame, pointers to its variables must not be around anymore
+        if(addressTaken){
+            asm.truncate(bodyStart);
+            tailCallsAllowed = false;
+            functionBody(functionDeclaration);
+        }
+
+        enter.q = asm.maxStackDepth(frameStart);
+
+        return null;
+    }
+
+    private void functionBody(Stmt.FunctionDeclaration functionDeclaration){
 
         // only temporarily modify the environment
         Environment previous = environment;
@@ -446,30 +576,80 @@ public class CodeGenerator implements Expr.Visitor<Code>, Stmt.Visitor<Code>{
             loc -= dataTypeToSize.get(decl.type);
             environment.define(decl.type, decl.variableName, Visibility.L, loc);
         }
+        parameterCells = -3 - loc;
 
         insideFunction = true;
+        addressTaken = false;
+
         // for variables defined locally (start here because l = 0 is frame pointer)
         l = 1;
 
-        code.addCode(code(functionDeclaration.body));
+        code(functionDeclaration.body);
 
         insideFunction = false;
         environment = previous;
+    }
 
-        return code;
+    // cells of all local variables declared in the statement, each declaration gets cells of its own
+    private int localCells(Stmt statement){
+
+        if(statement instanceof Stmt.VariableDeclaration){
+            Stmt.VariableDeclaration declaration = (Stmt.VariableDeclaration) statement;
+            return declaration.nElements * dataTypeToSize.get(getBaseType(declaration.type));
+        }
+        if(statement instanceof Stmt.BlockStatement){
+            int cells = 0;
+            for(Stmt inner : ((Stmt.BlockStatement) statement).statements){
+                cells += localCells(inner);
+            }
+            return cells;
+        }
+        if(statement instanceof Stmt.IfStatement){
+            Stmt.IfStatement ifStatement = (Stmt.IfStatement) statement;
+            return (ifStatement.ifBranch != null ? localCells(ifStatement.ifBranch) : 0)
+                    + (ifStatement.elseBranch != null ? localCells(ifStatement.elseBranch) : 0);
+        }
+        if(statement instanceof Stmt.WhileStatement){
+            return localCells(((Stmt.WhileStatement) statement).body);
+        }
+        return 0;
     }
 
     @Override
-    public Code visitReturnStatement(Stmt.ReturnStatement returnStatement) {
+    public Void visitReturnStatement(Stmt.ReturnStatement returnStatement) {
+
+        if(returnStatement.expr instanceof Expr.CallExpr && isTailCallPossible((Expr.CallExpr) returnStatement.expr)){
+            tailCall((Expr.CallExpr) returnStatement.expr);
+            return null;
+        }
 
-        Code code = returnStatement.expr != null ? codeR(returnStatement.expr) : new Code();
+        if(returnStatement.expr != null){
+            codeR(returnStatement.expr);
+        }
 
         // this is the destination (FP - 3 = return value)
-        code.addInstruction(new Instr.LoadRC(-3));
-        code.addInstruction(new Instr.Store());
+        asm.emit(new Instr.LoadRC(-3));
+        asm.emit(new Instr.Store());
 
-        code.addInstruction(new Instr.Return());
+        asm.emit(new Instr.Return());
 
-        return code;
+        return null;
+    }
+
+    // the arguments of the callee have to fit where the arguments of the current function are
+    private boolean isTailCallPossible(Expr.CallExpr call){
+        return useTailCalls && insideFunction && tailCallsAllowed && call.parameterExpressions.size() <= parameterCells;
+    }
+
+    // return f(...) without a frame of its own: f returns straight to our caller (see Instr.TailInvoke)
+    private void tailCall(Expr.CallExpr call){
+
+        int m = 0;
+        for(Expr parameterExpr : call.parameterExpressions.reversed()){
+            codeR(parameterExpr);
+            m++;
+        }
+
+        asm.emit(new Instr.TailInvoke(call.functionName, m));
     }
 }
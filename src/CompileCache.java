@@ -0,0 +1,381 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+// compiled code on disk, addressed by a hash of what it was compiled from (see compile):
+// <hash>.cma is a whole program (key: compiler version and source text),
+// <hash>.fn is one function before superinstructions and linking (key: compiler version, the global variables and the tokens of the function),
+// so after an edit only the functions that changed are generated again
+// files are written under a temporary name and moved into place, so several compilers can share the directory
+// when it grows beyond maxBytes, the least recently used files are deleted (a hit updates the modification time)
+public class CompileCache {
+
+    // part of every key, bump it whenever the generated code changes for the same source
+    static final String COMPILER_VERSION = "mini-c 2";
+
+    static final String PROGRAM_SUFFIX = ".cma";
+    static final String FUNCTION_SUFFIX = ".fn";
+
+    final Path directory;
+    final long maxBytes;
+
+    // bytes in the directory, counted when the cache is opened and on every write (other processes' writes are seen on eviction)
+    long size;
+
+    // of the last compile
+    boolean programHit;
+    int functionHits;
+    int functionMisses;
+
+    long evictions;
+
+    public CompileCache(Path directory, long maxBytes){
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not create the compile cache " + directory, e);
+        }
+
+        size = entries().stream().mapToLong(CompileCache::sizeOf).sum();
+    }
+
+    // the same code as new CodeGenerator().generateCode(new Parser(new Lexer(source).getTokens()).parse())
+    public Code compile(String source){
+
+        programHit = false;
+        functionHits = 0;
+        functionMisses = 0;
+
+        Path programEntry = entry(hash(COMPILER_VERSION, source), PROGRAM_SUFFIX);
+
+        Code cached = loadProgram(programEntry);
+        if(cached != null){
+            programHit = true;
+
+            // the cache may be over maxBytes without a single miss here (a lower limit, other compilers), the entry just used stays
+            evictIfFull();
+            return cached;
+        }
+
+        List<Token> tokens = new Lexer(source).getTokens();
+
+        List<Token> globalTokens = new ArrayList<>();
+        List<List<Token>> functions = new ArrayList<>();
+
+        for(List<Token> declaration : splitDeclarations(tokens)){
+            if(isFunction(declaration)){
+                functions.add(declaration);
+            }
+            else{
+                globalTokens.addAll(declaration);
+            }
+        }
+
+        List<Stmt.VariableDeclaration> globals = new ArrayList<>();
+        for(Stmt stmt : parse(globalTokens)){
+            if(!(stmt instanceof Stmt.VariableDeclaration)){
+                throw new RuntimeException("Top level statements can only be variable or function declarations");
+            }
+            globals.add((Stmt.VariableDeclaration) stmt);
+        }
+
+        // the code of a function depends on the addresses of the global variables, not on their initializers
+        StringBuilder globalLayout = new StringBuilder();
+        for(Stmt.VariableDeclaration global : globals){
+            globalLayout.append(String.format("%s %s[%d];", global.type, global.variableName, global.nElements));
+        }
+
+        CodeGenerator codeGenerator = new CodeGenerator();
+        Code code = codeGenerator.generateEntry(globals);
+
+        for(List<Token> function : functions){
+
+            Path functionEntry = entry(hash(COMPILER_VERSION, globalLayout.toString(), canonicalText(function)), FUNCTION_SUFFIX);
+
+            Code fragment = loadFunction(functionEntry);
+
+            if(fragment != null){
+                functionHits++;
+            }
+            else{
+                List<Stmt> parsed = parse(function);
+                if(parsed.size() != 1 || !(parsed.getFirst() instanceof Stmt.FunctionDeclaration)){
+                    throw new RuntimeException(String.format("[%d] Expected a single function declaration.", function.getFirst().line));
+                }
+
+                fragment = codeGenerator.generateFunction((Stmt.FunctionDeclaration) parsed.getFirst());
+                store(functionEntry, fragment);
+                functionMisses++;
+            }
+
+            code.addCode(fragment);
+        }
+
+        if(!code.functionNamesToCodeStart.containsKey("main")){
+            throw new RuntimeException("Program lacks entry point 'main'");
+        }
+
+        if(codeGenerator.useSuperinstructions){
+            Superinstructions.fuse(code);
+        }
+
+        code.link();
+
+        store(programEntry, code);
+        evictIfFull();
+
+        return code;
+    }
+
+    // the top level declarations: a global variable ends with the ; outside of braces, a function with the } that closes its body
+    static List<List<Token>> splitDeclarations(List<Token> tokens){
+
+        List<List<Token>> declarations = new ArrayList<>();
+
+        int start = 0;
+        int depth = 0;
+
+        for(int i = 0; i < tokens.size(); i++){
+
+            TokenType type = tokens.get(i).type;
+
+            if(type == TokenType.EOF){
+                break;
+            }
+
+            if(type == TokenType.LEFT_BRACE){
+                depth++;
+            }
+            else if(type == TokenType.RIGHT_BRACE){
+                depth--;
+            }
+
+            boolean end = depth == 0 && (type == TokenType.SEMICOLON || type == TokenType.RIGHT_BRACE);
+
+            if(end){
+                declarations.add(tokens.subList(start, i + 1));
+                start = i + 1;
+            }
+        }
+
+        // an unfinished declaration, the parser reports it
+        if(start < tokens.size() && tokens.get(start).type != TokenType.EOF){
+            declarations.add(tokens.subList(start, tokens.size() - 1));
+        }
+
+        return declarations;
+    }
+
+    // int f( or int* f(, as in the parser
+    private static boolean isFunction(List<Token> declaration){
+
+        int name = declaration.size() > 1 && declaration.get(1).type == TokenType.STAR ? 2 : 1;
+
+        return declaration.size() > name + 1
+                && declaration.getFirst().type == TokenType.INT
+                && declaration.get(name).type == TokenType.IDENTIFIER
+                && declaration.get(name + 1).type == TokenType.LEFT_PAREN;
+    }
+
+    private static List<Stmt> parse(List<Token> declarationTokens){
+
+        List<Token> tokens = new ArrayList<>(declarationTokens);
+        int line = tokens.isEmpty() ? 0 : tokens.getLast().line;
+        tokens.add(new Token(line, TokenType.EOF, "", null));
+
+        return new Parser(tokens).parseDeclarations();
+    }
+
+    // the tokens without their line numbers, so moving a function around doesn't change its key
+    private static String canonicalText(List<Token> tokens){
+
+        StringBuilder text = new StringBuilder();
+
+        for(Token token : tokens){
+            text.append(token.type).append(' ').append(token.lexeme).append('\n');
+        }
+
+        return text.toString();
+    }
+
+    static String hash(String... parts){
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+
+        for(String part : parts){
+            byte[] bytes = part.getBytes(StandardCharsets.UTF_8);
+
+            // the length in front, so the parts can't run into each other
+            digest.update(String.format("%d:", bytes.length).getBytes(StandardCharsets.US_ASCII));
+            digest.update(bytes);
+        }
+
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private Path entry(String hash, String suffix){
+        return directory.resolve(hash + suffix);
+    }
+
+    // null if it isn't there (anymore)
+    private Code loadProgram(Path entry){
+
+        if(!touch(entry)){
+            return null;
+        }
+
+        try {
+            return new Code(entry.toString());
+        } catch (RuntimeException e) {
+            // evicted in the meantime or broken, it is written again
+            return null;
+        }
+    }
+
+    private Code loadFunction(Path entry){
+
+        if(!touch(entry)){
+            return null;
+        }
+
+        try {
+            Code fragment = new Code();
+            ListingLoader.load(ByteBuffer.wrap(Files.readAllBytes(entry)), fragment);
+            return fragment;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // marks the entry as recently used
+    private boolean touch(Path entry){
+        try {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void store(Path entry, Code code){
+
+        Path temporary = null;
+
+        try {
+            temporary = Files.createTempFile(directory, entry.getFileName().toString(), ".tmp");
+
+            try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                code.writeListing(writer);
+            }
+
+            long written = Files.size(temporary);
+            Files.move(temporary, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            size += written;
+
+        } catch (IOException e) {
+            // the cache only saves time, compiling still works without it
+            System.err.println("Could not write " + entry + " to the compile cache: " + e.getMessage());
+
+            if(temporary != null){
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    // deletes the least recently used entries until the cache is down to 3/4 of maxBytes (so not every write evicts)
+    void evictIfFull(){
+
+        if(size <= maxBytes){
+            return;
+        }
+
+        List<Path> entries = entries();
+
+        // read once, other compilers may touch entries while sorting
+        Map<Path, FileTime> lastUsed = new HashMap<>();
+        for(Path entry : entries){
+            lastUsed.put(entry, lastModified(entry));
+        }
+        entries.sort(Comparator.comparing(lastUsed::get));
+
+        size = entries.stream().mapToLong(CompileCache::sizeOf).sum();
+
+        for(Path entry : entries){
+
+            if(size <= maxBytes / 4 * 3){
+                break;
+            }
+
+            long entrySize = sizeOf(entry);
+            try {
+                Files.deleteIfExists(entry);
+                size -= entrySize;
+                evictions++;
+            } catch (IOException ignored) {
+                // in use or gone, try the next one
+            }
+        }
+    }
+
+    private List<Path> entries(){
+        try (Stream<Path> files = Files.list(directory)) {
+            return new ArrayList<>(files
+                    .filter(file -> file.toString().endsWith(PROGRAM_SUFFIX) || file.toString().endsWith(FUNCTION_SUFFIX))
+                    .toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long sizeOf(Path file){
+        try {
+            return Files.size(file);
+        } catch (NoSuchFileException e) {
+            return 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static FileTime lastModified(Path file){
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    public String toString(){
+        if(programHit){
+            return "program from the cache";
+        }
+        return String.format("%d of %d functions from the cache", functionHits, functionHits + functionMisses);
+    }
+}
@@ -1,36 +1,131 @@
 import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.List;
 
+// usage: CompileCode [-cache dir] [-cacheSize megabytes] [-watch] [file.c]
+// with -cache, unchanged programs and functions are taken from the compile cache (see CompileCache),
+// with -watch, the file is compiled again whenever it changes
 public class CompileCode {
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException, InterruptedException {
 
         String filePath = "primes.c";
+        Path cacheDirectory = null;
+        long cacheMegabytes = 256;
+        boolean watch = false;
 
-        String source = getSource(filePath);
+        for(int i = 0; i < args.length; i++){
+            switch(args[i]){
+                case "-cache" -> cacheDirectory = Path.of(args[++i]);
+                case "-cacheSize" -> cacheMegabytes = Long.parseLong(args[++i]);
+                case "-watch" -> watch = true;
+                default -> filePath = args[i];
+            }
+        }
+
+        CompileCache cache = cacheDirectory != null ? new CompileCache(cacheDirectory, cacheMegabytes << 20) : null;
 
-        // Lexer
-        Lexer lexer = new Lexer(source);
+        if(!watch){
+            compile(filePath, getSource(filePath), cache);
+            return;
+        }
 
-        List<Token> tokens = lexer.getTokens();
+        watch(Path.of(filePath), cache);
+    }
 
-        // Parser
-        Parser parser = new Parser(tokens);
+    // writes the .cma listing and the .cmb next to the .c file
+    static void compile(String filePath, String source, CompileCache cache){
+
+        Code code;
+
+        if(cache != null){
+            code = cache.compile(source);
+            System.out.println(filePath + ": " + cache);
+        }
+        else{
+            // Lexer
+            Lexer lexer = new Lexer(source);
 
-        Program program = parser.parse();
+            List<Token> tokens = lexer.getTokens();
 
-        // Code generator
-        CodeGenerator codeGenerator = new CodeGenerator();
+            // Parser
+            Parser parser = new Parser(tokens);
 
-        Code code = codeGenerator.generateCode(program);
+            Program program = parser.parse();
+
+            // Code generator
+            CodeGenerator codeGenerator = new CodeGenerator();
+
+            code = codeGenerator.generateCode(program);
+        }
 
         // strip away the .c at the end
         String rawName = filePath.substring(0, filePath.length() - 2);
         String outputPath = rawName + ".cma";
 
         code.saveToFile(outputPath);
+
+        // the same program in the binary format, loads without parsing (see ProgramImage.read)
+        new ProgramImage(code).write(Path.of(rawName + ".cmb"));
+    }
+
+    // compiles the file now and after every change until the process is stopped, errors are printed and the watching goes on
+    static void watch(Path file, CompileCache cache) throws IOException, InterruptedException {
+
+        Path directory = file.toAbsolutePath().getParent();
+        Path fileName = file.getFileName();
+
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+            String lastSource = null;
+
+            while(true){
+
+                // editors often write a file in several steps, an unchanged source isn't compiled again
+                try {
+                    String source = Files.readString(file);
+
+                    if(!source.equals(lastSource)){
+                        lastSource = source;
+                        compile(file.toString(), source, cache);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("Could not compile " + file + ": " + e.getMessage());
+                }
+
+                boolean changed = false;
+
+                while(!changed){
+                    WatchKey key;
+                    try {
+                        key = watchService.take();
+                    } catch (ClosedWatchServiceException e) {
+                        return;
+                    }
+
+                    // after an overflow events were lost, one of them may have been ours
+                    for(WatchEvent<?> event : key.pollEvents()){
+                        if(event.kind() == StandardWatchEventKinds.OVERFLOW || fileName.equals(event.context())){
+                            changed = true;
+                        }
+                    }
+
+                    if(!key.reset()){
+                        System.out.println("Stopped watching, " + directory + " is gone.");
+                        return;
+                    }
+                }
+            }
+        }
     }
 
     public static String getSource(String filePath) {
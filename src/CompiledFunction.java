@@ -0,0 +1,7 @@
+// a function of the VM code that was translated into JVM bytecode by the JitCompiler
+public interface CompiledFunction {
+
+    // the frame (return value, extreme pointer, old frame pointer, return address) is already set up
+    // the return value is left in stack[framePointer - 3]
+    void run(VirtualMachine vm, int[] stack, int framePointer);
+}
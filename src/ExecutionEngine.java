@@ -0,0 +1,8 @@
+public enum ExecutionEngine {
+
+    // switch over the decoded code store (with the optional JIT tier)
+    INTERPRETER,
+
+    // trees of self-specializing nodes built from the basic blocks (see NodeInterpreter)
+    NODE_TREE
+}
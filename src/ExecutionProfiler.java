@@ -0,0 +1,312 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// counts what the interpreter executes: per opcode, per instruction, per function (exclusive and inclusive)
+// and per call path, plus how often backward jumps (loops) are taken
+// only the interpreter reports to the profiler, the VM doesn't use the JIT while profiling
+// usage: ExecutionProfiler program.cma|.cmb profile.json profile.folded
+public class ExecutionProfiler {
+
+    ProgramImage image;
+
+    long instructionCount;
+
+    long[] opcodeCounts;
+    long[] pcCounts;
+
+    // by the pc of the jump
+    long[] backEdgeCounts;
+
+    // function 0 is the entry code in front of the first function
+    String[] functionNames;
+    int[] functionStarts;
+    int[] functionOfPc;
+
+    long[] callCounts;
+    long[] exclusiveCounts;
+    long[] inclusiveCounts;
+
+    // how many frames of a function are on the call stack right now (recursion is only counted once for inclusive)
+    int[] activeFrames;
+
+    // shadow call stack: function and the instruction count when it was entered
+    int[] callStack = new int[64];
+    long[] entryCounts = new long[64];
+    int depth;
+
+    CallPath root;
+    CallPath currentPath;
+
+    // one node per distinct chain of calls, for the flame graph
+    static class CallPath {
+
+        int function;
+        CallPath parent;
+        long count;
+
+        Map<Integer, CallPath> children = new HashMap<>();
+
+        CallPath(int function, CallPath parent){
+            this.function = function;
+            this.parent = parent;
+        }
+
+        CallPath child(int function){
+            CallPath child = children.get(function);
+
+            if(child == null){
+                child = new CallPath(function, this);
+                children.put(function, child);
+            }
+            return child;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        if(args.length != 3){
+            System.out.println("usage: ExecutionProfiler program.cma profile.json profile.folded");
+            System.exit(1);
+        }
+
+        ExecutionProfiler profiler = new ExecutionProfiler();
+
+        VirtualMachine vm = new VirtualMachine();
+        vm.profiler = profiler;
+        vm.execute(ProgramImage.load(args[0]));
+
+        Files.writeString(Path.of(args[1]), profiler.toJson());
+        Files.writeString(Path.of(args[2]), profiler.toCollapsedStacks());
+    }
+
+    // called by the VM before a run, runs of the same program add up
+    void start(ProgramImage image){
+
+        if(image != this.image){
+            this.image = image;
+            clear();
+        }
+
+        depth = 0;
+        currentPath = root;
+        push(0);
+    }
+
+    public void clear(){
+
+        int codeSize = image.opcodes.length;
+
+        instructionCount = 0;
+        opcodeCounts = new long[Instr.N_OPCODES];
+        pcCounts = new long[codeSize];
+        backEdgeCounts = new long[codeSize];
+
+        findFunctions();
+
+        int nFunctions = functionNames.length;
+        callCounts = new long[nFunctions];
+        exclusiveCounts = new long[nFunctions];
+        inclusiveCounts = new long[nFunctions];
+        activeFrames = new int[nFunctions];
+
+        root = new CallPath(0, null);
+        callCounts[0] = 1;
+    }
+
+    private void findFunctions(){
+
+        TreeMap<Integer, String> byStart = new TreeMap<>();
+        for(Map.Entry<String, Integer> function : image.functionTable.entrySet()){
+            byStart.put(function.getValue(), function.getKey());
+        }
+
+        functionNames = new String[byStart.size() + 1];
+        functionStarts = new int[byStart.size() + 1];
+        functionNames[0] = "(entry)";
+
+        int i = 1;
+        for(Map.Entry<Integer, String> function : byStart.entrySet()){
+            functionStarts[i] = function.getKey();
+            functionNames[i] = function.getValue();
+            i++;
+        }
+
+        functionOfPc = new int[image.opcodes.length];
+        int function = 0;
+        for(int pc = 0; pc < functionOfPc.length; pc++){
+            while(function + 1 < functionStarts.length && functionStarts[function + 1] <= pc){
+                function++;
+            }
+            functionOfPc[pc] = function;
+        }
+    }
+
+    // the instruction at pc was executed, nextPc is where the interpreter continues
+    void executed(int pc, int nextPc){
+
+        int opcode = image.opcodes[pc];
+
+        instructionCount++;
+        opcodeCounts[opcode]++;
+        pcCounts[pc]++;
+        exclusiveCounts[callStack[depth - 1]]++;
+        currentPath.count++;
+
+        switch(opcode){
+            case Instr.INVOKE:
+            case Instr.MEMO_INVOKE:
+            case Instr.CALL:
+                // a compiled function doesn't jump, but the profiler keeps the JIT off anyway
+                if(nextPc != pc + 1){
+                    int function = functionOfPc[nextPc];
+                    callCounts[function]++;
+                    push(function);
+                }
+                break;
+            case Instr.TAIL_INVOKE:
+                // the callee takes the place of the current function on the call stack
+                if(depth > 1){
+                    pop();
+                }
+                callCounts[functionOfPc[nextPc]]++;
+                push(functionOfPc[nextPc]);
+                break;
+            case Instr.RETURN:
+                if(depth > 1){
+                    pop();
+                }
+                break;
+            case Instr.JUMP:
+            case Instr.JUMPZ:
+            case Instr.LESS_JUMPZ:
+                if(nextPc <= pc){
+                    backEdgeCounts[pc]++;
+                }
+                break;
+        }
+    }
+
+    // called by the VM after a run, the frames that are still open count as left
+    void finish(){
+        while(depth > 0){
+            pop();
+        }
+    }
+
+    private void push(int function){
+
+        if(depth == callStack.length){
+            callStack = Arrays.copyOf(callStack, 2 * depth);
+            entryCounts = Arrays.copyOf(entryCounts, 2 * depth);
+        }
+
+        callStack[depth] = function;
+        entryCounts[depth] = instructionCount;
+        depth++;
+
+        activeFrames[function]++;
+
+        if(depth > 1){
+            currentPath = currentPath.child(function);
+        }
+    }
+
+    private void pop(){
+
+        depth--;
+        int function = callStack[depth];
+
+        // only the outermost frame of a recursive function counts
+        if(--activeFrames[function] == 0){
+            inclusiveCounts[function] += instructionCount - entryCounts[depth];
+        }
+
+        if(currentPath.parent != null){
+            currentPath = currentPath.parent;
+        }
+    }
+
+    public String toJson(){
+
+        StringBuilder json = new StringBuilder("{\n");
+        json.append(String.format("  \"instructions\": %d,\n", instructionCount));
+
+        json.append("  \"opcodes\": {");
+        List<String> entries = new ArrayList<>();
+        for(int opcode = 0; opcode < opcodeCounts.length; opcode++){
+            if(opcodeCounts[opcode] > 0){
+                entries.add(String.format("\n    \"%s\": %d", mnemonic(opcode), opcodeCounts[opcode]));
+            }
+        }
+        json.append(String.join(",", entries)).append("\n  },\n");
+
+        json.append("  \"functions\": [");
+        entries.clear();
+        for(int function = 0; function < functionNames.length; function++){
+            entries.add(String.format("\n    {\"name\": \"%s\", \"start\": %d, \"calls\": %d, \"exclusive\": %d, \"inclusive\": %d}",
+                    escape(functionNames[function]), functionStarts[function], callCounts[function], exclusiveCounts[function], inclusiveCounts[function]));
+        }
+        json.append(String.join(",", entries)).append("\n  ],\n");
+
+        json.append("  \"pcs\": [");
+        entries.clear();
+        for(int pc = 0; pc < pcCounts.length; pc++){
+            if(pcCounts[pc] > 0){
+                entries.add(String.format("\n    {\"pc\": %d, \"instruction\": \"%s\", \"function\": \"%s\", \"count\": %d}",
+                        pc, escape(image.describe(pc)), escape(functionNames[functionOfPc[pc]]), pcCounts[pc]));
+            }
+        }
+        json.append(String.join(",", entries)).append("\n  ],\n");
+
+        // hottest loops first
+        json.append("  \"backEdges\": [");
+        entries.clear();
+        Integer[] jumps = new Integer[backEdgeCounts.length];
+        for(int pc = 0; pc < jumps.length; pc++){
+            jumps[pc] = pc;
+        }
+        Arrays.sort(jumps, (a, b) -> Long.compare(backEdgeCounts[b], backEdgeCounts[a]));
+        for(int pc : jumps){
+            if(backEdgeCounts[pc] > 0){
+                entries.add(String.format("\n    {\"from\": %d, \"to\": %d, \"function\": \"%s\", \"count\": %d}",
+                        pc, image.operands[pc], escape(functionNames[functionOfPc[pc]]), backEdgeCounts[pc]));
+            }
+        }
+        json.append(String.join(",", entries)).append("\n  ]\n");
+
+        return json.append("}\n").toString();
+    }
+
+    // one line per call path: "(entry);main;factorial 42" with the instructions executed in the last function of the path
+    public String toCollapsedStacks(){
+        StringBuilder collapsed = new StringBuilder();
+        appendCollapsed(root, functionNames[0], collapsed);
+        return collapsed.toString();
+    }
+
+    private void appendCollapsed(CallPath path, String stack, StringBuilder collapsed){
+
+        if(path.count > 0){
+            collapsed.append(stack).append(' ').append(path.count).append('\n');
+        }
+
+        for(CallPath child : path.children.values()){
+            appendCollapsed(child, stack + ";" + functionNames[child.function], collapsed);
+        }
+    }
+
+    private String mnemonic(int opcode){
+        return Instr.MNEMONICS[opcode];
+    }
+
+    private static String escape(String s){
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
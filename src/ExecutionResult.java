@@ -0,0 +1,39 @@
+// how a run of the VM ended and what it used up until then (also when it was stopped by a limit)
+public class ExecutionResult {
+
+    enum Status {
+        HALTED,
+        // fuelLimit of the VM used up
+        OUT_OF_FUEL,
+        // timeLimitMillis of the VM passed
+        TIMED_OUT,
+        // ended after snapshot() because stopAtSnapshot was set
+        STOPPED_AT_SNAPSHOT
+    }
+
+    final Status status;
+
+    // return value of main (only when HALTED)
+    final int exitCode;
+
+    // a backward jump uses up the number of instructions of the loop, a call uses up 1
+    final long fuelUsed;
+
+    final long elapsedNanos;
+
+    ExecutionResult(Status status, int exitCode, long fuelUsed, long elapsedNanos){
+        this.status = status;
+        this.exitCode = exitCode;
+        this.fuelUsed = fuelUsed;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public boolean isHalted(){
+        return status == Status.HALTED;
+    }
+
+    @Override
+    public String toString(){
+        return String.format("%s (exit code %d, fuel used %d, %.3f ms)", status, exitCode, fuelUsed, elapsedNanos / 1e6);
+    }
+}
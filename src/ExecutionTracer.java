@@ -0,0 +1,84 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+
+// remembers the last instructions the interpreter executed: (pc, opcode, sp, fp, top of stack) as plain ints in a ring buffer
+// nothing is formatted while the VM runs, the dump is binary and gets printed by the TraceDecoder
+// compiled functions and the node engine don't record, their calls show up as the Invoke that entered them
+public class ExecutionTracer {
+
+    static final int MAGIC = 0x434D5452; // "CMTR"
+    static final int VERSION = 1;
+
+    // ints per record
+    static final int RECORD_SIZE = 5;
+
+    int capacity;
+    int[] records;
+
+    // all records so far, the ring only keeps the last capacity ones
+    long count;
+
+    // written automatically when the VM fails (null = only dump on demand)
+    Path crashDump;
+
+    public ExecutionTracer(int capacity){
+
+        if(capacity <= 0 || capacity > Integer.MAX_VALUE / RECORD_SIZE){
+            throw new RuntimeException(String.format("Tracer capacity must be between 1 and %d instructions.", Integer.MAX_VALUE / RECORD_SIZE));
+        }
+
+        this.capacity = capacity;
+        records = new int[capacity * RECORD_SIZE];
+    }
+
+    // state before the instruction at pc is executed
+    void record(int pc, int opcode, int stackPointer, int framePointer, int topOfStack){
+        int offset = (int) (count % capacity) * RECORD_SIZE;
+
+        records[offset] = pc;
+        records[offset + 1] = opcode;
+        records[offset + 2] = stackPointer;
+        records[offset + 3] = framePointer;
+        records[offset + 4] = topOfStack;
+
+        count++;
+    }
+
+    public void clear(){
+        count = 0;
+    }
+
+    // magic, version, number of records so far (long), number of records in the file, then the records from oldest to newest
+    public void dump(Path path){
+
+        int stored = (int) Math.min(count, capacity);
+        int oldest = (int) ((count - stored) % capacity);
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path.toFile())))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(count);
+            out.writeInt(stored);
+
+            for(int i = 0; i < stored; i++){
+                int offset = ((oldest + i) % capacity) * RECORD_SIZE;
+
+                for(int k = 0; k < RECORD_SIZE; k++){
+                    out.writeInt(records[offset + k]);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write the trace to " + path, e);
+        }
+    }
+
+    void dumpAfterCrash(){
+        if(crashDump != null){
+            dump(crashDump);
+            System.err.printf("VM: trace of the last %d instructions written to %s\n", Math.min(count, capacity), crashDump);
+        }
+    }
+}
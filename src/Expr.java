@@ -151,6 +151,20 @@ public abstract class Expr {
             return visitor.visitArrayAccessExpr(this, mode);
         }
     }
+    // malloc(n) gives the address of n new cells on the heap
+    static class MallocExpr extends Expr{
+        final Expr size;
+
+        public MallocExpr(Expr size){
+            this.size = size;
+        }
+
+        @Override
+        <T> T accept(Visitor<T> visitor, GenerationMode mode) {
+            return visitor.visitMallocExpr(this, mode);
+        }
+    }
+
     interface Visitor<T>{
         T visitLiteral(Literal literal, GenerationMode mode);
         T visitBinary(BinOp binOp, GenerationMode mode);
@@ -162,5 +176,6 @@ public abstract class Expr {
         T visitCallExpr(CallExpr expr, GenerationMode mode);
         T visitNegatedExpr(NegatedExpr expr, GenerationMode mode);
         T visitUnaryMinusExpr(UnaryMinusExpr expr, GenerationMode mode);
+        T visitMallocExpr(MallocExpr expr, GenerationMode mode);
     }
 }
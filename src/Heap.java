@@ -0,0 +1,153 @@
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
+import java.util.BitSet;
+
+// memory for malloc and free, lives outside of the JVM heap (no garbage collector involved)
+// heap cells have the addresses BASE, BASE + 1, ... so an int* can point into the stack or into the heap
+// blocks come in power of two size classes, freed blocks wait in one free list per class for the next malloc
+public class Heap {
+
+    // every address from here on belongs to the heap, the stack never gets that large
+    static final int BASE = 1 << 30;
+
+    // blocks of 1, 2, 4, ... 2^30 cells
+    static final int N_SIZE_CLASSES = 31;
+
+    // every block has a header cell in front of it with its size class, the highest bit is set while it is free
+    static final int FREE = 1 << 31;
+
+    Arena arena;
+    MemorySegment memory;
+
+    // in cells
+    int size;
+
+    // first cell that was never handed out
+    int top;
+
+    // size class -> address of the first free block (0 = no free block)
+    // the first cell of a free block holds the address of the next one
+    int[] freeLists = new int[N_SIZE_CLASSES];
+
+    // offsets of the cells where a block starts, free only takes those
+    // (blocks are never split or merged, so a block start stays one until the heap is cleared)
+    BitSet blockStarts = new BitSet();
+
+    public Heap(int size){
+
+        if(size <= 0 || size > Integer.MAX_VALUE - BASE){
+            throw new RuntimeException(String.format("Heap size must be between 1 and %d cells.", Integer.MAX_VALUE - BASE));
+        }
+
+        this.size = size;
+
+        // the heap stays with its VM for many runs (cleared in between) and is freed by the garbage collector together with it
+        // (a pooled VM moves between threads, but only one thread uses it at a time)
+        arena = Arena.ofAuto();
+        memory = arena.allocate((long) size * Integer.BYTES, Integer.BYTES);
+    }
+
+    // returns the address of the first of n cells
+    public int malloc(int n){
+
+        if(n < 0){
+            throw new RuntimeException(String.format("malloc(%d): size must not be negative.", n));
+        }
+
+        int sizeClass = sizeClass(n);
+        int block = freeLists[sizeClass];
+
+        if(block != 0){
+            freeLists[sizeClass] = load(block);
+        }
+        else{
+            int cells = 1 << sizeClass;
+
+            if((long) top + 1 + cells > size){
+                throw new RuntimeException(String.format("Out of heap memory: malloc(%d) doesn't fit into the heap of %d cells.", n, size));
+            }
+
+            block = BASE + top + 1;
+            top += 1 + cells;
+
+            blockStarts.set(block - BASE);
+        }
+
+        store(block - 1, sizeClass);
+
+        return block;
+    }
+
+    public void free(int block){
+
+        // an address inside of a block or on the stack has no header, whatever is in the cell in front of it
+        if(block <= BASE || block > BASE + top || !blockStarts.get(block - BASE)){
+            throw new RuntimeException(String.format("free(%d): address was not returned by malloc.", block));
+        }
+
+        int header = load(block - 1);
+
+        if((header & FREE) != 0){
+            throw new RuntimeException(String.format("free(%d): block was already freed.", block));
+        }
+
+        store(block - 1, header | FREE);
+        store(block, freeLists[header]);
+        freeLists[header] = block;
+    }
+
+    public int load(int address){
+        return memory.getAtIndex(ValueLayout.JAVA_INT, address - BASE);
+    }
+
+    public void store(int address, int value){
+        memory.setAtIndex(ValueLayout.JAVA_INT, address - BASE, value);
+    }
+
+    // the cells handed out so far, together with top and the free lists that is all a VmSnapshot needs
+    int[] usedCells(){
+        return memory.asSlice(0, (long) top * Integer.BYTES).toArray(ValueLayout.JAVA_INT);
+    }
+
+    // puts back what usedCells returned into a cleared heap
+    void restore(int[] cells, int[] freeLists){
+
+        if(cells.length > size){
+            throw new RuntimeException(String.format("Heap of %d cells is too small for the %d cells of the snapshot.", size, cells.length));
+        }
+
+        MemorySegment.copy(cells, 0, memory, ValueLayout.JAVA_INT, 0, cells.length);
+        top = cells.length;
+        this.freeLists = freeLists.clone();
+
+        // the blocks lie one after the other, each header says how far it is to the next one
+        blockStarts.clear();
+
+        int header = 0;
+        while(header < top){
+            int sizeClass = cells[header] & ~FREE;
+
+            if(sizeClass >= N_SIZE_CLASSES || header + 1 + (1L << sizeClass) > top){
+                throw new RuntimeException(String.format("The heap of the snapshot has a broken block header at %d.", BASE + header));
+            }
+
+            blockStarts.set(header + 1);
+            header += 1 + (1 << sizeClass);
+        }
+    }
+
+    // back to the state of a new heap, only the cells that were handed out need to be zeroed
+    public void clear(){
+        memory.asSlice(0, (long) top * Integer.BYTES).fill((byte) 0);
+        top = 0;
+        Arrays.fill(freeLists, 0);
+        blockStarts.clear();
+    }
+
+    // smallest k with 2^k >= n
+    private static int sizeClass(int n){
+        return n <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(n - 1);
+    }
+}
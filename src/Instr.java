@@ -1,22 +1,117 @@
 public abstract class Instr {
+
+    // opcodes of the decoded code store inside the VM
+    static final int HALT = 0;
+    static final int ENTER = 1;
+    static final int MARK = 2;
+    static final int CALL = 3;
+    static final int RETURN = 4;
+    static final int SLIDE = 5;
+    static final int LOADRC = 6;
+    static final int LOADC = 7;
+    static final int ADD = 8;
+    static final int LESS = 9;
+    static final int LESS_OR_EQUAL = 10;
+    static final int EQUAL = 11;
+    static final int UNEQUAL = 12;
+    static final int GREATER_OR_EQUAL = 13;
+    static final int GREATER = 14;
+    static final int MUL = 15;
+    static final int STORE = 16;
+    static final int POP = 17;
+    static final int LOAD = 18;
+    static final int NEG = 19;
+    static final int FLIP_SIGN = 20;
+    static final int SUB = 21;
+    static final int AND = 22;
+    static final int OR = 23;
+    static final int MOD = 24;
+    static final int DIV = 25;
+    static final int JUMPZ = 26;
+    static final int JUMP = 27;
+    static final int PRINT = 28;
+    static final int ALLOC = 29;
+    static final int INVOKE = 30;
+
+    // superinstructions (see Superinstructions)
+    static final int LOADR = 31;
+    static final int STORER_POP = 32;
+    static final int STORE_POP = 33;
+    static final int ADDC = 34;
+    static final int LESS_JUMPZ = 35;
+
+    // only produced by the decoder of the VM
+    // Print of a constant pool string
+    static final int PRINT_STRING = 36;
+    // placed behind the last instruction, leaves the interpreter loop (return address of calls made by compiled code)
+    static final int EXIT = 37;
+
+    // dynamic memory (see Heap)
+    static final int MALLOC = 38;
+    static final int FREE = 39;
+
+    // return f(...) that reuses the frame of the caller
+    static final int TAIL_INVOKE = 40;
+
+    // saves the state of the VM if someone listens (see VmSnapshot)
+    static final int SNAPSHOT = 41;
+
+    // Invoke of a pure function, the VM may answer it from its MemoCache
+    static final int MEMO_INVOKE = 42;
+
+    // highest opcode + 1
+    static final int N_OPCODES = 43;
+
+    // names of the opcodes like in a listing, by opcode
+    static final String[] MNEMONICS = {
+            "Halt", "Enter", "Mark", "Call", "Return", "Slide", "LoadRC", "LoadC", "Add", "Less",
+            "LessOrEqual", "Equal", "UnEqual", "GreaterOrEqual", "Greater", "Mul", "Store", "Pop", "Load", "Neg",
+            "FlipSign", "Sub", "And", "Or", "Mod", "Div", "JumpZ", "Jump", "Print", "Alloc",
+            "Invoke", "LoadR", "StoreRPop", "StorePop", "AddC", "LessJumpZ", "PrintString", "Exit", "Malloc", "Free",
+            "TailInvoke", "Snapshot", "MemoInvoke"
+    };
+
+    abstract int opcode();
+
     static class Halt extends Instr{
+        @Override
+        int opcode(){
+            return HALT;
+        }
+
         @Override
         public String toString() {
             return "Halt";
         }
     }
 
-    // TODO: add VM interpretation (we don't have extreme pointer yet)
     static class Enter extends Instr{
 
+        // maximum number of cells the frame uses above the frame pointer
+        int q;
+
+        public Enter(int q){
+            this.q = q;
+        }
+
+        @Override
+        int opcode(){
+            return ENTER;
+        }
+
         @Override
         public String toString(){
-            return "Enter";
+            return String.format("Enter %d", q);
         }
     }
 
     static class Mark extends Instr{
 
+        @Override
+        int opcode(){
+            return MARK;
+        }
+
         @Override
         public String toString(){
             return "Mark";
@@ -25,14 +120,89 @@ public abstract class Instr {
 
     static class Call extends Instr{
 
+        @Override
+        int opcode(){
+            return CALL;
+        }
+
         @Override
         public String toString(){
             return "Call";
         }
     }
 
+    // fused call sequence LoadC 0; Mark; LoadC 'f'; Call; Slide m
+    // reserves the return value, marks the frame, calls f and removes the m arguments after the return
+    static class Invoke extends Instr{
+
+        String functionName;
+        int m;
+
+        // absolute index of the function start, resolved by Code.link() (-1 = not linked yet)
+        int target = -1;
+
+        public Invoke(String functionName, int m){
+            this.functionName = functionName;
+            this.m = m;
+        }
+
+        @Override
+        int opcode(){
+            return INVOKE;
+        }
+
+        @Override
+        public String toString(){
+            return String.format("Invoke '%s' %d", functionName, m);
+        }
+    }
+
+    // return f(...) compiled without a new frame: the m arguments replace the ones of the current function,
+    // the return value cell, extreme pointer, old frame pointer and return address are kept,
+    // so f returns directly to the caller of the current function
+    static class TailInvoke extends Invoke{
+
+        public TailInvoke(String functionName, int m){
+            super(functionName, m);
+        }
+
+        @Override
+        int opcode(){
+            return TAIL_INVOKE;
+        }
+
+        @Override
+        public String toString(){
+            return String.format("TailInvoke '%s' %d", functionName, m);
+        }
+    }
+
+    // Invoke of a function whose result only depends on its arguments (see PurityAnalysis)
+    // with a MemoCache the VM skips calls it has seen before, otherwise it is a normal Invoke
+    static class MemoInvoke extends Invoke{
+
+        public MemoInvoke(String functionName, int m){
+            super(functionName, m);
+        }
+
+        @Override
+        int opcode(){
+            return MEMO_INVOKE;
+        }
+
+        @Override
+        public String toString(){
+            return String.format("MemoInvoke '%s' %d", functionName, m);
+        }
+    }
+
     static class Return extends Instr{
 
+        @Override
+        int opcode(){
+            return RETURN;
+        }
+
         @Override
         public String toString(){
             return "Return";
@@ -47,6 +217,11 @@ public abstract class Instr {
             this.m = m;
         }
 
+        @Override
+        int opcode(){
+            return SLIDE;
+        }
+
         @Override
         public String toString(){
             return "Slide " + m;
@@ -60,6 +235,12 @@ public abstract class Instr {
         public LoadRC(int j){
             this.j = j;
         }
+
+        @Override
+        int opcode(){
+            return LOADRC;
+        }
+
         public String toString(){
             return "LoadRC " + j;
         }
@@ -73,6 +254,11 @@ public abstract class Instr {
             this.q = q;
         }
 
+        @Override
+        int opcode(){
+            return LOADC;
+        }
+
         public String toString(){
             if(q instanceof Integer){
                 return "LoadC " + (Integer)q;
@@ -87,6 +273,11 @@ public abstract class Instr {
         }
     }
     static class Add extends Instr{
+        @Override
+        int opcode(){
+            return ADD;
+        }
+
         @Override
         public String toString() {
             return "Add";
@@ -94,6 +285,11 @@ public abstract class Instr {
     }
 
     static class Less extends Instr{
+        @Override
+        int opcode(){
+            return LESS;
+        }
+
         @Override
         public String toString(){
             return "Less";
@@ -101,12 +297,22 @@ public abstract class Instr {
     }
 
     static class LessOrEqual extends Instr{
+        @Override
+        int opcode(){
+            return LESS_OR_EQUAL;
+        }
+
         @Override
         public String toString(){
             return "LessOrEqual";
         }
     }
     static class Equal extends Instr{
+        @Override
+        int opcode(){
+            return EQUAL;
+        }
+
         @Override
         public String toString(){
             return "Equal";
@@ -114,6 +320,11 @@ public abstract class Instr {
     }
 
     static class UnEqual extends Instr{
+        @Override
+        int opcode(){
+            return UNEQUAL;
+        }
+
         @Override
         public String toString(){
             return "UnEqual";
@@ -121,6 +332,11 @@ public abstract class Instr {
     }
 
     static class GreaterOrEqual extends Instr{
+        @Override
+        int opcode(){
+            return GREATER_OR_EQUAL;
+        }
+
         @Override
         public String toString(){
             return "GreaterOrEqual";
@@ -128,6 +344,11 @@ public abstract class Instr {
     }
 
     static class Greater extends Instr{
+        @Override
+        int opcode(){
+            return GREATER;
+        }
+
         @Override
         public String toString(){
             return "Greater";
@@ -136,12 +357,22 @@ public abstract class Instr {
 
     static class Mul extends Instr{
 
+        @Override
+        int opcode(){
+            return MUL;
+        }
+
         @Override
         public String toString(){
             return "Mul";
         }
     }
     static class Store extends Instr{
+        @Override
+        int opcode(){
+            return STORE;
+        }
+
         @Override
         public String toString() {
             return "Store";
@@ -149,12 +380,22 @@ public abstract class Instr {
     }
     static class Pop extends Instr{
 
+        @Override
+        int opcode(){
+            return POP;
+        }
+
         @Override
         public String toString() {
             return "Pop";
         }
     }
     static class Load extends Instr{
+        @Override
+        int opcode(){
+            return LOAD;
+        }
+
         @Override
         public String toString() {
             return "Load";
@@ -163,11 +404,21 @@ public abstract class Instr {
 
     // for booleans
     static class Neg extends Instr{
+        @Override
+        int opcode(){
+            return NEG;
+        }
+
         @Override
         public String toString(){ return "Neg"; }
     }
 
     static class FlipSign extends Instr{
+        @Override
+        int opcode(){
+            return FLIP_SIGN;
+        }
+
         @Override
         public String toString(){
             return "FlipSign";
@@ -176,6 +427,11 @@ public abstract class Instr {
 
     static class Sub extends Instr{
 
+        @Override
+        int opcode(){
+            return SUB;
+        }
+
         @Override
         public String toString(){
             return "Sub";
@@ -184,6 +440,11 @@ public abstract class Instr {
 
     static class And extends Instr{
 
+        @Override
+        int opcode(){
+            return AND;
+        }
+
         @Override
         public String toString(){
             return "And";
@@ -192,6 +453,11 @@ public abstract class Instr {
 
     static class Or extends Instr{
 
+        @Override
+        int opcode(){
+            return OR;
+        }
+
         @Override
         public String toString(){
             return "Or";
@@ -200,6 +466,11 @@ public abstract class Instr {
 
     static class Mod extends Instr{
 
+        @Override
+        int opcode(){
+            return MOD;
+        }
+
         @Override
         public String toString(){
             return "Mod";
@@ -208,6 +479,11 @@ public abstract class Instr {
 
     static class Div extends Instr{
 
+        @Override
+        int opcode(){
+            return DIV;
+        }
+
         @Override
         public String toString(){
             return "Div";
@@ -218,10 +494,18 @@ public abstract class Instr {
 
         int jumpLabel;
 
+        // absolute index of the destination, resolved by Code.link() (-1 = not linked yet)
+        int target = -1;
+
         public JumpZ(int jumpLabel){
             this.jumpLabel = jumpLabel;
         }
 
+        @Override
+        int opcode(){
+            return JUMPZ;
+        }
+
         @Override
         public String toString(){
             return String.format("JumpZ %d", jumpLabel);
@@ -232,10 +516,18 @@ public abstract class Instr {
     static class Jump extends Instr{
         int jumpLabel;
 
+        // absolute index of the destination, resolved by Code.link() (-1 = not linked yet)
+        int target = -1;
+
         public Jump(int jumpLabel){
             this.jumpLabel = jumpLabel;
         }
 
+        @Override
+        int opcode(){
+            return JUMP;
+        }
+
         public String toString(){
             return String.format("Jump %d", jumpLabel);
         }
@@ -243,6 +535,11 @@ public abstract class Instr {
 
     static class Print extends Instr{
 
+        @Override
+        int opcode(){
+            return PRINT;
+        }
+
         @Override
         public String toString(){
             return "Print";
@@ -258,9 +555,154 @@ public abstract class Instr {
             this.k = k;
         }
 
+        @Override
+        int opcode(){
+            return ALLOC;
+        }
+
         @Override
         public String toString(){
             return String.format("Alloc %d", k);
         }
     }
+
+    // replaces the number of cells on top of the stack by the address of a new heap block
+    static class Malloc extends Instr{
+
+        @Override
+        int opcode(){
+            return MALLOC;
+        }
+
+        @Override
+        public String toString(){
+            return "Malloc";
+        }
+    }
+
+    // consumes the address of a heap block and gives it back
+    static class Free extends Instr{
+
+        @Override
+        int opcode(){
+            return FREE;
+        }
+
+        @Override
+        public String toString(){
+            return "Free";
+        }
+    }
+
+    static class Snapshot extends Instr{
+
+        @Override
+        int opcode(){
+            return SNAPSHOT;
+        }
+
+        @Override
+        public String toString(){
+            return "Snapshot";
+        }
+    }
+
+    // superinstructions, each one replaces a frequent sequence of the instructions above
+
+    // LoadRC j; Load
+    static class LoadR extends Instr{
+
+        int j;
+
+        public LoadR(int j){
+            this.j = j;
+        }
+
+        @Override
+        int opcode(){
+            return LOADR;
+        }
+
+        @Override
+        public String toString(){
+            return "LoadR " + j;
+        }
+    }
+
+    // LoadRC j; Store; Pop
+    static class StoreRPop extends Instr{
+
+        int j;
+
+        public StoreRPop(int j){
+            this.j = j;
+        }
+
+        @Override
+        int opcode(){
+            return STORER_POP;
+        }
+
+        @Override
+        public String toString(){
+            return "StoreRPop " + j;
+        }
+    }
+
+    // Store; Pop
+    static class StorePop extends Instr{
+
+        @Override
+        int opcode(){
+            return STORE_POP;
+        }
+
+        @Override
+        public String toString(){
+            return "StorePop";
+        }
+    }
+
+    // LoadC q; Add
+    static class AddC extends Instr{
+
+        int q;
+
+        public AddC(int q){
+            this.q = q;
+        }
+
+        @Override
+        int opcode(){
+            return ADDC;
+        }
+
+        @Override
+        public String toString(){
+            return "AddC " + q;
+        }
+    }
+
+    // Less; JumpZ jumpLabel
+    static class LessJumpZ extends Instr{
+
+        int jumpLabel;
+
+        // absolute index of the destination, resolved by Code.link() (-1 = not linked yet)
+        int target = -1;
+
+        public LessJumpZ(int jumpLabel){
+            this.jumpLabel = jumpLabel;
+        }
+
+        @Override
+        int opcode(){
+            return LESS_JUMPZ;
+        }
+
+        @Override
+        public String toString(){
+            return String.format("LessJumpZ %d", jumpLabel);
+        }
+    }
 }
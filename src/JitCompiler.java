@@ -0,0 +1,918 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+// translates hot functions of the decoded VM code into JVM classes
+// the operand stack of the VM becomes the operand stack of the JVM method,
+// local variables whose address is never taken live in JVM locals
+// functions that can't be translated (e.g. old Mark/Call sequences) keep running in the interpreter
+public class JitCompiler {
+
+    VirtualMachine vm;
+    int threshold;
+
+    // indexed by the start of a function
+    int[] invocationCounts;
+    CompiledFunction[] compiledFunctions;
+    boolean[] notCompilable;
+
+    // starts of all functions, used to find where a function ends
+    TreeSet<Integer> functionStarts;
+
+    boolean printCompilations = false;
+
+    public JitCompiler(VirtualMachine vm, int threshold){
+        this.vm = vm;
+        this.threshold = threshold;
+
+        int codeSize = vm.opcodes.length;
+        invocationCounts = new int[codeSize];
+        compiledFunctions = new CompiledFunction[codeSize];
+        notCompilable = new boolean[codeSize];
+
+        functionStarts = new TreeSet<>(vm.functionTable.values());
+    }
+
+    // counts the invocation and returns the compiled version once the function is hot (null = interpret)
+    public CompiledFunction compiledFunction(int functionStart){
+
+        CompiledFunction compiled = compiledFunctions[functionStart];
+
+        if(compiled == null && !notCompilable[functionStart] && ++invocationCounts[functionStart] >= threshold){
+            compiled = compile(functionStart);
+
+            if(compiled == null){
+                notCompilable[functionStart] = true;
+            }
+            compiledFunctions[functionStart] = compiled;
+        }
+
+        return compiled;
+    }
+
+    private CompiledFunction compile(int functionStart){
+
+        Integer nextFunctionStart = functionStarts.higher(functionStart);
+        int functionEnd = nextFunctionStart != null ? nextFunctionStart : vm.exitAddress;
+
+        FunctionTranslator translator = new FunctionTranslator(functionStart, functionEnd);
+
+        if(!translator.analyze()){
+            if(printCompilations){
+                System.out.printf("JIT: function at %d can't be compiled (%s)\n", functionStart, translator.failure);
+            }
+            return null;
+        }
+
+        byte[] classBytes = translator.classFile();
+
+        try {
+            Class<?> compiledClass = MethodHandles.lookup().defineHiddenClass(classBytes, true).lookupClass();
+
+            if(printCompilations){
+                System.out.printf("JIT: compiled function at %d (%d bytes of bytecode)\n", functionStart, translator.methodCode.size());
+            }
+
+            return (CompiledFunction) compiledClass.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("Could not load compiled function at " + functionStart, e);
+        }
+    }
+
+    private class FunctionTranslator {
+
+        // JVM locals of the run method
+        static final int THIS = 0;
+        static final int VM = 1;
+        static final int STACK = 2;
+        static final int FP = 3;
+        static final int TMP_ADDRESS = 4;
+        static final int TMP_VALUE = 5;
+        static final int FIRST_PROMOTED = 6;
+
+        int start;
+        int end;
+
+        String failure;
+
+        // operand stack depth before each instruction (-1 = unreachable)
+        int[] depths;
+        int maxDepth;
+
+        // cells of the frame allocated by all Alloc instructions together
+        int frameSize;
+
+        // relative address (fp + j) -> JVM local
+        Map<Integer, Integer> promotedCells = new HashMap<>();
+
+        Set<Integer> jumpDestinations = new HashSet<>();
+
+        ByteArrayOutputStream methodCode = new ByteArrayOutputStream();
+
+        // bytecode offset of each VM instruction and of each internal label
+        int[] instructionOffsets;
+        List<Integer> labelOffsets = new ArrayList<>();
+
+        // (position of the branch opcode, position of the offset, instruction or label)
+        List<int[]> instructionFixups = new ArrayList<>();
+        List<int[]> labelFixups = new ArrayList<>();
+
+        ConstantPool constantPool = new ConstantPool();
+
+        FunctionTranslator(int start, int end){
+            this.start = start;
+            this.end = end;
+        }
+
+        // checks that the function only uses supported instructions and has a fixed stack depth at every instruction
+        boolean analyze(){
+
+            int[] opcodes = vm.opcodes;
+            int[] operands = vm.operands;
+
+            depths = new int[end - start];
+            Arrays.fill(depths, -1);
+
+            Deque<Integer> worklist = new ArrayDeque<>();
+            depths[0] = 0;
+            worklist.push(start);
+
+            while(!worklist.isEmpty()){
+                int pc = worklist.pop();
+                int depth = depths[pc - start];
+
+                int[] effect = stackEffect(pc);
+                if(effect == null){
+                    failure = "unsupported instruction " + vm.image.describe(pc);
+                    return false;
+                }
+
+                if(depth < effect[0]){
+                    failure = "stack underflow at " + pc;
+                    return false;
+                }
+
+                int depthAfter = depth - effect[0] + effect[1];
+                maxDepth = Math.max(maxDepth, depthAfter);
+
+                int opcode = opcodes[pc];
+
+                if(opcode == Instr.RETURN){
+                    continue;
+                }
+
+                if(opcode == Instr.JUMP || opcode == Instr.JUMPZ || opcode == Instr.LESS_JUMPZ){
+                    jumpDestinations.add(operands[pc]);
+
+                    if(!flowTo(operands[pc], depthAfter, worklist)){
+                        return false;
+                    }
+                }
+
+                if(opcode != Instr.JUMP && !flowTo(pc + 1, depthAfter, worklist)){
+                    return false;
+                }
+            }
+
+            for(int pc = start; pc < end; pc++){
+                if(opcodes[pc] == Instr.ALLOC){
+                    frameSize += operands[pc];
+                }
+            }
+
+            promoteCells();
+
+            return true;
+        }
+
+        private boolean flowTo(int destination, int depth, Deque<Integer> worklist){
+
+            if(destination < start || destination >= end){
+                failure = "control flow leaves the function at " + destination;
+                return false;
+            }
+
+            int known = depths[destination - start];
+
+            if(known == -1){
+                depths[destination - start] = depth;
+                worklist.push(destination);
+            }
+            else if(known != depth){
+                failure = "different stack depths at " + destination;
+                return false;
+            }
+            return true;
+        }
+
+        // {values consumed, values produced} or null if the instruction can't be compiled
+        private int[] stackEffect(int pc){
+            switch(vm.opcodes[pc]){
+                case Instr.LOADC:
+                case Instr.LOADRC:
+                case Instr.LOADR:
+                    return new int[]{0, 1};
+                case Instr.LOAD:
+                case Instr.NEG:
+                case Instr.FLIP_SIGN:
+                case Instr.ADDC:
+                case Instr.MALLOC:
+                    return new int[]{1, 1};
+                case Instr.STORE:
+                case Instr.ADD:
+                case Instr.SUB:
+                case Instr.MUL:
+                case Instr.DIV:
+                case Instr.MOD:
+                case Instr.LESS:
+                case Instr.LESS_OR_EQUAL:
+                case Instr.GREATER:
+                case Instr.GREATER_OR_EQUAL:
+                case Instr.EQUAL:
+                case Instr.UNEQUAL:
+                case Instr.AND:
+                case Instr.OR:
+                    return new int[]{2, 1};
+                case Instr.POP:
+                case Instr.FREE:
+                case Instr.PRINT:
+                case Instr.PRINT_STRING:
+                case Instr.JUMPZ:
+                case Instr.STORER_POP:
+                    return new int[]{1, 0};
+                case Instr.STORE_POP:
+                case Instr.LESS_JUMPZ:
+                    return new int[]{2, 0};
+                case Instr.JUMP:
+                case Instr.ALLOC:
+                case Instr.ENTER:
+                case Instr.RETURN:
+                    return new int[]{0, 0};
+                case Instr.MEMO_INVOKE:
+                    // with a memo cache the function stays in the interpreter, which looks the calls up
+                    return vm.memoCache == null ? new int[]{vm.secondOperands[pc], 1} : null;
+                case Instr.INVOKE:
+                    return new int[]{vm.secondOperands[pc], 1};
+                default:
+                    return null;
+            }
+        }
+
+        // a cell of the frame can live in a JVM local if its address is only ever used to load or store right away
+        private void promoteCells(){
+
+            Set<Integer> candidates = new HashSet<>();
+            Set<Integer> addressTaken = new HashSet<>();
+
+            for(int pc = start; pc < end; pc++){
+
+                int opcode = vm.opcodes[pc];
+                int j = vm.operands[pc];
+
+                if(opcode == Instr.LOADR || opcode == Instr.STORER_POP){
+                    candidates.add(j);
+                }
+                else if(opcode == Instr.LOADRC){
+                    candidates.add(j);
+
+                    if(!isLoadOrStore(pc + 1) || jumpDestinations.contains(pc + 1)){
+                        addressTaken.add(j);
+                    }
+                }
+            }
+
+            for(int j : candidates){
+                // the return value, extreme pointer, old frame pointer and return address stay in memory
+                boolean isFrameCell = -3 <= j && j <= 0;
+
+                if(!isFrameCell && !addressTaken.contains(j)){
+                    promotedCells.put(j, FIRST_PROMOTED + promotedCells.size());
+                }
+            }
+        }
+
+        private boolean isLoadOrStore(int pc){
+            return pc < end && (vm.opcodes[pc] == Instr.LOAD || vm.opcodes[pc] == Instr.STORE);
+        }
+
+        byte[] classFile(){
+
+            emitMethodCode();
+
+            try {
+                return assembleClass();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void emitMethodCode(){
+
+            instructionOffsets = new int[end - start];
+
+            // promoted cells start out with the values in memory (parameters, or whatever an uninitialized local holds)
+            for(Map.Entry<Integer, Integer> cell : promotedCells.entrySet()){
+                emitCellAddress(cell.getKey());
+                emitLoadFromAddress();
+                emitLocal(0x36, cell.getValue());
+            }
+
+            int[] opcodes = vm.opcodes;
+            int[] operands = vm.operands;
+
+            boolean skipNext = false;
+
+            for(int pc = start; pc < end; pc++){
+
+                instructionOffsets[pc - start] = methodCode.size();
+
+                if(depths[pc - start] == -1){
+                    continue;
+                }
+
+                // the load or store was already emitted together with the LoadRC of a promoted cell
+                if(skipNext){
+                    skipNext = false;
+                    continue;
+                }
+
+                int operand = operands[pc];
+
+                switch(opcodes[pc]){
+                    case Instr.LOADC:
+                        emitConstant(operand);
+                        break;
+                    case Instr.LOADRC:
+                        if(promotedCells.containsKey(operand)){
+                            int local = promotedCells.get(operand);
+
+                            if(opcodes[pc + 1] == Instr.LOAD){
+                                emitLocal(0x15, local);
+                            }
+                            else{
+                                // Store leaves the value on the stack
+                                emit(0x59);
+                                emitLocal(0x36, local);
+                            }
+                            skipNext = true;
+                        }
+                        else{
+                            emitCellAddress(operand);
+                        }
+                        break;
+                    case Instr.LOADR:
+                        if(promotedCells.containsKey(operand)){
+                            emitLocal(0x15, promotedCells.get(operand));
+                        }
+                        else{
+                            emitCellAddress(operand);
+                            emitLoadFromAddress();
+                        }
+                        break;
+                    case Instr.LOAD:
+                        emitLoadFromPointer();
+                        break;
+                    case Instr.STORE:
+                        // value, address -> value
+                        emitLocal(0x36, TMP_ADDRESS);
+                        emit(0x59);
+                        emitLocal(0x36, TMP_VALUE);
+                        emitStoreTemporariesToPointer();
+                        break;
+                    case Instr.STORE_POP:
+                        emitLocal(0x36, TMP_ADDRESS);
+                        emitLocal(0x36, TMP_VALUE);
+                        emitStoreTemporariesToPointer();
+                        break;
+                    case Instr.MALLOC:
+                        emitVmCall("malloc", "(I)I");
+                        break;
+                    case Instr.FREE:
+                        emitVmCall("free", "(I)V");
+                        break;
+                    case Instr.STORER_POP:
+                        if(promotedCells.containsKey(operand)){
+                            emitLocal(0x36, promotedCells.get(operand));
+                        }
+                        else{
+                            emitLocal(0x36, TMP_VALUE);
+                            emitCellAddress(operand);
+                            emitLocal(0x36, TMP_ADDRESS);
+                            emitStoreTemporaries();
+                        }
+                        break;
+                    case Instr.POP:
+                        emit(0x57);
+                        break;
+                    case Instr.ALLOC:
+                        // the frame size is fixed, see frameSize
+                        break;
+                    case Instr.ADD:
+                        emit(0x60);
+                        break;
+                    case Instr.SUB:
+                        emit(0x64);
+                        break;
+                    case Instr.MUL:
+                        emit(0x68);
+                        break;
+                    case Instr.DIV:
+                        emit(0x6c);
+                        break;
+                    case Instr.MOD:
+                        emit(0x70);
+                        break;
+                    case Instr.FLIP_SIGN:
+                        emit(0x74);
+                        break;
+                    case Instr.ADDC:
+                        emitConstant(operand);
+                        emit(0x60);
+                        break;
+                    case Instr.LESS:
+                        emitComparison(0xa1);
+                        break;
+                    case Instr.LESS_OR_EQUAL:
+                        emitComparison(0xa4);
+                        break;
+                    case Instr.GREATER:
+                        emitComparison(0xa3);
+                        break;
+                    case Instr.GREATER_OR_EQUAL:
+                        emitComparison(0xa2);
+                        break;
+                    case Instr.EQUAL:
+                        emitComparison(0x9f);
+                        break;
+                    case Instr.UNEQUAL:
+                        emitComparison(0xa0);
+                        break;
+                    case Instr.NEG:
+                        emitNeg();
+                        break;
+                    case Instr.AND:
+                        emitAnd();
+                        break;
+                    case Instr.OR:
+                        emitOr();
+                        break;
+                    case Instr.JUMPZ:
+                        // ifeq, not taken: ifne
+                        emitConditionalJump(pc, 0x99, 0x9a, operand);
+                        break;
+                    case Instr.LESS_JUMPZ:
+                        // if_icmpge, not taken: if_icmplt
+                        emitConditionalJump(pc, 0xa2, 0xa1, operand);
+                        break;
+                    case Instr.JUMP:
+                        emitUseFuelOnBackwardJump(pc, operand);
+                        emitBranchToInstruction(0xa7, operand);
+                        break;
+                    case Instr.PRINT:
+                        emitPrint("print");
+                        break;
+                    case Instr.PRINT_STRING:
+                        emitPrint("printString");
+                        break;
+                    // only compiled without a memo cache, then it is a normal call
+                    case Instr.INVOKE:
+                    case Instr.MEMO_INVOKE:
+                        emitInvoke(operand, vm.secondOperands[pc], depths[pc - start]);
+                        break;
+                    case Instr.ENTER:
+                        emitEnter(operand);
+                        break;
+                    case Instr.RETURN:
+                        // the return value is already in stack[fp - 3]
+                        emit(0xb1);
+                        break;
+                }
+            }
+
+            patchBranches();
+        }
+
+        private void emitInvoke(int functionStart, int nArguments, int depth){
+
+            // the arguments go to memory where the interpreter would have them, the callee's frame starts above
+            int stackPointer = frameSize + depth;
+
+            for(int i = 0; i < nArguments; i++){
+                emitLocal(0x36, TMP_VALUE);
+                emitCellAddress(stackPointer - i);
+                emitLocal(0x36, TMP_ADDRESS);
+                emitStoreTemporaries();
+            }
+
+            emit(0x2b);
+            emitConstant(functionStart);
+            emitCellAddress(stackPointer);
+            emitLocal(0x15, FP);
+            emit(0xb6);
+            emitShort(constantPool.methodRef("VirtualMachine", "invokeFromCompiled", "(III)I"));
+        }
+
+        // the callee frames are placed like in the interpreter, so the same check applies
+        private void emitEnter(int q){
+            // vm, fp, q
+            emit(0x2b);
+            emitLocal(0x15, FP);
+            emitConstant(q);
+            emit(0xb6);
+            emitShort(constantPool.methodRef("VirtualMachine", "enter", "(II)V"));
+        }
+
+        private void emitPrint(String methodName){
+            emitVmCall(methodName, "(I)V");
+        }
+
+        // a backward conditional jump uses up fuel only when it is taken, as in the interpreter:
+        // the opposite condition jumps over the fuel and the jump
+        private void emitConditionalJump(int pc, int opcode, int oppositeOpcode, int destination){
+
+            if(destination > pc){
+                emitBranchToInstruction(opcode, destination);
+                return;
+            }
+
+            int notTaken = newLabel();
+            emitBranchToLabel(oppositeOpcode, notTaken);
+
+            emitUseFuelOnBackwardJump(pc, destination);
+            emitBranchToInstruction(0xa7, destination);
+
+            placeLabel(notTaken);
+        }
+
+        // compiled loops use up the fuel of the VM like interpreted ones
+        private void emitUseFuelOnBackwardJump(int pc, int destination){
+            if(destination <= pc){
+                emitConstant(pc - destination + 1);
+                emitVmCall("useFuel", "(I)V");
+            }
+        }
+
+        // calls a VM method with the int on top of the JVM stack
+        private void emitVmCall(String methodName, String descriptor){
+            // vm, value
+            emit(0x2b);
+            emit(0x5f);
+            emit(0xb6);
+            emitShort(constantPool.methodRef("VirtualMachine", methodName, descriptor));
+        }
+
+        // pushes fp + j
+        private void emitCellAddress(int j){
+            emitLocal(0x15, FP);
+            emitConstant(j);
+            emit(0x60);
+        }
+
+        // address -> stack[address]
+        private void emitLoadFromAddress(){
+            emit(0x2c);
+            emit(0x5f);
+            emit(0x2e);
+        }
+
+        // stack[TMP_ADDRESS] = TMP_VALUE
+        private void emitStoreTemporaries(){
+            emit(0x2c);
+            emitLocal(0x15, TMP_ADDRESS);
+            emitLocal(0x15, TMP_VALUE);
+            emit(0x4f);
+        }
+
+        // address -> memory[address], the stack is accessed directly, the heap through the VM
+        private void emitLoadFromPointer(){
+            int isHeap = newLabel();
+            int end = newLabel();
+
+            emit(0x59);
+            emitConstant(Heap.BASE);
+            emitBranchToLabel(0xa2, isHeap);
+            emitLoadFromAddress();
+            emitBranchToLabel(0xa7, end);
+            placeLabel(isHeap);
+            emitVmCall("load", "(I)I");
+            placeLabel(end);
+        }
+
+        // memory[TMP_ADDRESS] = TMP_VALUE
+        private void emitStoreTemporariesToPointer(){
+            int isHeap = newLabel();
+            int end = newLabel();
+
+            emitLocal(0x15, TMP_ADDRESS);
+            emitConstant(Heap.BASE);
+            emitBranchToLabel(0xa2, isHeap);
+            emitStoreTemporaries();
+            emitBranchToLabel(0xa7, end);
+            placeLabel(isHeap);
+            emit(0x2b);
+            emitLocal(0x15, TMP_ADDRESS);
+            emitLocal(0x15, TMP_VALUE);
+            emit(0xb6);
+            emitShort(constantPool.methodRef("VirtualMachine", "store", "(II)V"));
+            placeLabel(end);
+        }
+
+        // a, b -> (a op b) ? 1 : 0
+        private void emitComparison(int branchOpcode){
+            int isTrue = newLabel();
+            int end = newLabel();
+
+            emitBranchToLabel(branchOpcode, isTrue);
+            emit(0x03);
+            emitBranchToLabel(0xa7, end);
+            placeLabel(isTrue);
+            emit(0x04);
+            placeLabel(end);
+        }
+
+        private void emitNeg(){
+            int isZero = newLabel();
+            int end = newLabel();
+
+            emitBranchToLabel(0x99, isZero);
+            emit(0x03);
+            emitBranchToLabel(0xa7, end);
+            placeLabel(isZero);
+            emit(0x04);
+            placeLabel(end);
+        }
+
+        private void emitAnd(){
+            int secondIsZero = newLabel();
+            int isFalse = newLabel();
+            int end = newLabel();
+
+            emitBranchToLabel(0x99, secondIsZero);
+            emitBranchToLabel(0x99, isFalse);
+            emit(0x04);
+            emitBranchToLabel(0xa7, end);
+            placeLabel(secondIsZero);
+            emit(0x57);
+            placeLabel(isFalse);
+            emit(0x03);
+            placeLabel(end);
+        }
+
+        private void emitOr(){
+            int secondIsSet = newLabel();
+            int isTrue = newLabel();
+            int end = newLabel();
+
+            emitBranchToLabel(0x9a, secondIsSet);
+            emitBranchToLabel(0x9a, isTrue);
+            emit(0x03);
+            emitBranchToLabel(0xa7, end);
+            placeLabel(secondIsSet);
+            emit(0x57);
+            placeLabel(isTrue);
+            emit(0x04);
+            placeLabel(end);
+        }
+
+        private void emitConstant(int value){
+            if(-1 <= value && value <= 5){
+                emit(0x03 + value);
+            }
+            else if(Byte.MIN_VALUE <= value && value <= Byte.MAX_VALUE){
+                emit(0x10);
+                emit(value);
+            }
+            else if(Short.MIN_VALUE <= value && value <= Short.MAX_VALUE){
+                emit(0x11);
+                emitShort(value);
+            }
+            else{
+                emit(0x13);
+                emitShort(constantPool.integer(value));
+            }
+        }
+
+        // iload (0x15) / istore (0x36)
+        private void emitLocal(int opcode, int local){
+            if(local > 255){
+                throw new RuntimeException("Too many locals in compiled function.");
+            }
+            emit(opcode);
+            emit(local);
+        }
+
+        private void emitBranchToInstruction(int opcode, int pc){
+            instructionFixups.add(new int[]{methodCode.size(), methodCode.size() + 1, pc});
+            emit(opcode);
+            emitShort(0);
+        }
+
+        private void emitBranchToLabel(int opcode, int label){
+            labelFixups.add(new int[]{methodCode.size(), methodCode.size() + 1, label});
+            emit(opcode);
+            emitShort(0);
+        }
+
+        private int newLabel(){
+            labelOffsets.add(-1);
+            return labelOffsets.size() - 1;
+        }
+
+        private void placeLabel(int label){
+            labelOffsets.set(label, methodCode.size());
+        }
+
+        private void patchBranches(){
+
+            byte[] code = methodCode.toByteArray();
+
+            for(int[] fixup : instructionFixups){
+                patchBranch(code, fixup, instructionOffsets[fixup[2] - start]);
+            }
+            for(int[] fixup : labelFixups){
+                patchBranch(code, fixup, labelOffsets.get(fixup[2]));
+            }
+
+            methodCode.reset();
+            methodCode.write(code, 0, code.length);
+        }
+
+        private void patchBranch(byte[] code, int[] fixup, int destination){
+            int offset = destination - fixup[0];
+
+            if(offset < Short.MIN_VALUE || offset > Short.MAX_VALUE){
+                throw new RuntimeException("Compiled function is too large.");
+            }
+
+            code[fixup[1]] = (byte) (offset >> 8);
+            code[fixup[1] + 1] = (byte) offset;
+        }
+
+        private void emit(int b){
+            methodCode.write(b);
+        }
+
+        private void emitShort(int s){
+            methodCode.write(s >> 8);
+            methodCode.write(s);
+        }
+
+        private byte[] assembleClass() throws IOException {
+
+            int thisClass = constantPool.classRef("CompiledFunction$" + start);
+            int superClass = constantPool.classRef("java/lang/Object");
+            int interfaceClass = constantPool.classRef("CompiledFunction");
+            int objectInit = constantPool.methodRef("java/lang/Object", "<init>", "()V");
+            int initName = constantPool.utf8("<init>");
+            int initDescriptor = constantPool.utf8("()V");
+            int runName = constantPool.utf8("run");
+            int runDescriptor = constantPool.utf8("(LVirtualMachine;[II)V");
+            int codeAttribute = constantPool.utf8("Code");
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            out.writeInt(0xCAFEBABE);
+            // version 49 doesn't need stack map frames
+            out.writeShort(0);
+            out.writeShort(49);
+
+            constantPool.write(out);
+
+            // public final super
+            out.writeShort(0x0031);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(interfaceClass);
+
+            // no fields
+            out.writeShort(0);
+
+            out.writeShort(2);
+
+            // constructor: aload_0, invokespecial Object.<init>, return
+            byte[] initCode = {0x2a, (byte) 0xb7, (byte) (objectInit >> 8), (byte) objectInit, (byte) 0xb1};
+            writeMethod(out, initName, initDescriptor, codeAttribute, 1, 1, initCode);
+
+            int maxStack = maxDepth + 4;
+            int maxLocals = FIRST_PROMOTED + promotedCells.size();
+            writeMethod(out, runName, runDescriptor, codeAttribute, maxStack, maxLocals, methodCode.toByteArray());
+
+            // no attributes
+            out.writeShort(0);
+
+            return bytes.toByteArray();
+        }
+
+        private void writeMethod(DataOutputStream out, int name, int descriptor, int codeAttribute,
+                                 int maxStack, int maxLocals, byte[] code) throws IOException {
+
+            if(code.length > 65535){
+                throw new RuntimeException("Compiled function is too large.");
+            }
+
+            // public
+            out.writeShort(0x0001);
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            out.writeShort(1);
+
+            out.writeShort(codeAttribute);
+            out.writeInt(12 + code.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.length);
+            out.write(code);
+            // no exception table, no attributes
+            out.writeShort(0);
+            out.writeShort(0);
+        }
+    }
+
+    // constant pool of a class file, entries are shared
+    private static class ConstantPool {
+
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(entries);
+
+        Map<String, Integer> indices = new HashMap<>();
+        int nextIndex = 1;
+
+        int utf8(String value){
+            return entry("U" + value, () -> {
+                out.writeByte(1);
+                out.writeUTF(value);
+            });
+        }
+
+        int integer(int value){
+            return entry("I" + value, () -> {
+                out.writeByte(3);
+                out.writeInt(value);
+            });
+        }
+
+        int classRef(String name){
+            int nameIndex = utf8(name);
+            return entry("C" + name, () -> {
+                out.writeByte(7);
+                out.writeShort(nameIndex);
+            });
+        }
+
+        int methodRef(String owner, String name, String descriptor){
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+
+            int nameAndType = entry("N" + name + descriptor, () -> {
+                out.writeByte(12);
+                out.writeShort(nameIndex);
+                out.writeShort(descriptorIndex);
+            });
+
+            return entry("M" + owner + "." + name + descriptor, () -> {
+                out.writeByte(10);
+                out.writeShort(ownerIndex);
+                out.writeShort(nameAndType);
+            });
+        }
+
+        private int entry(String key, EntryWriter writer){
+
+            if(indices.containsKey(key)){
+                return indices.get(key);
+            }
+
+            try {
+                writer.write();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            indices.put(key, nextIndex);
+            return nextIndex++;
+        }
+
+        void write(DataOutputStream classOut) throws IOException {
+            classOut.writeShort(nextIndex);
+            classOut.write(entries.toByteArray());
+        }
+
+        private interface EntryWriter {
+            void write() throws IOException;
+        }
+    }
+}
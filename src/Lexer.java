@@ -27,6 +27,9 @@ public class Lexer {
         keywordToToken.put("else", TokenType.ELSE);
         keywordToToken.put("for", TokenType.FOR);
         keywordToToken.put("print", TokenType.PRINT);
+        keywordToToken.put("malloc", TokenType.MALLOC);
+        keywordToToken.put("free", TokenType.FREE);
+        keywordToToken.put("snapshot", TokenType.SNAPSHOT);
     }
 
     public List<Token> getTokens(){
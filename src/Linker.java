@@ -0,0 +1,292 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// usage: Linker [-parallelism n] [-output name] file.c...
+// compiles every file into an object module next to it (file.cmo, see ObjectModule) on all cores, files whose module is up to date
+// (same source and compiler) are skipped, and links the modules into one program (name.cma and name.cmb, by default named after the first file):
+// the global variables of all files are initialized in the order of the files before main is called,
+// jump labels are numbered again and every call is resolved to the start of its function
+public class Linker {
+
+    int parallelism = Runtime.getRuntime().availableProcessors();
+
+    boolean useSuperinstructions = true;
+
+    // of the last build
+    AtomicInteger compiled = new AtomicInteger();
+    AtomicInteger upToDate = new AtomicInteger();
+
+    public static void main(String[] args) {
+
+        Linker linker = new Linker();
+        String outputName = null;
+        List<Path> sources = new ArrayList<>();
+
+        for(int i = 0; i < args.length; i++){
+            switch(args[i]){
+                case "-parallelism" -> linker.parallelism = Integer.parseInt(args[++i]);
+                case "-output" -> outputName = args[++i];
+                default -> sources.add(Path.of(args[i]));
+            }
+        }
+
+        if(sources.isEmpty()){
+            System.out.println("usage: Linker [-parallelism n] [-output name] file.c...");
+            System.exit(1);
+        }
+
+        if(outputName == null){
+            outputName = withoutExtension(sources.getFirst());
+        }
+
+        try {
+            List<ObjectModule> modules = linker.compile(sources);
+            Code code = linker.link(modules);
+
+            code.saveToFile(outputName + ".cma");
+            new ProgramImage(code).write(Path.of(outputName + ".cmb"));
+
+            System.out.printf("%d files (%d compiled, %d up to date) linked into %s.cma, %d instructions%n",
+                    modules.size(), linker.compiled.get(), linker.upToDate.get(), outputName, code.instructions.size());
+
+        } catch (RuntimeException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // the object modules of the files in their order, compiled in parallel
+    public List<ObjectModule> compile(List<Path> sources){
+
+        compiled.set(0);
+        upToDate.set(0);
+
+        // a fork-join pool would wrap the errors of the compiler in copies of themselves
+        try (ExecutorService executor = Executors.newFixedThreadPool(parallelism)) {
+
+            List<Future<ObjectModule>> futures = new ArrayList<>();
+            for(Path source : sources){
+                futures.add(executor.submit(() -> compileIfChanged(source)));
+            }
+
+            List<ObjectModule> modules = new ArrayList<>();
+            for(Future<ObjectModule> future : futures){
+                modules.add(future.get());
+            }
+            return modules;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("The compilation was interrupted.", e);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof RuntimeException){
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("A file could not be compiled.", e.getCause());
+        }
+    }
+
+    // reads file.cmo instead if it was compiled from the same source by the same compiler
+    ObjectModule compileIfChanged(Path source){
+
+        String text;
+        try {
+            text = Files.readString(source);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open file at " + source, e);
+        }
+
+        Path objectPath = Path.of(withoutExtension(source) + ".cmo");
+
+        if(Files.exists(objectPath)){
+            try {
+                ObjectModule module = ObjectModule.read(objectPath);
+
+                if(ObjectModule.hashOf(text).equals(module.sourceHash)){
+                    upToDate.incrementAndGet();
+                    return module;
+                }
+            } catch (RuntimeException e) {
+                // broken, compiled again
+            }
+        }
+
+        ObjectModule module;
+        try {
+            module = ObjectModule.compile(source.toString(), text);
+        } catch (RuntimeException e) {
+            throw new RuntimeException(String.format("%s: %s", source, e.getMessage()), e);
+        }
+
+        module.write(objectPath);
+        compiled.incrementAndGet();
+
+        return module;
+    }
+
+    public Code link(List<ObjectModule> modules){
+
+        // symbol table: function -> module that defines it
+        Map<String, ObjectModule> definitions = new HashMap<>();
+
+        for(ObjectModule module : modules){
+            for(String function : module.exports){
+                ObjectModule other = definitions.putIfAbsent(function, module);
+                if(other != null){
+                    throw new RuntimeException(String.format("Function '%s' is defined in %s and in %s.", function, other.name, module.name));
+                }
+            }
+        }
+
+        for(ObjectModule module : modules){
+            for(String function : module.imports){
+                if(!definitions.containsKey(function)){
+                    throw new RuntimeException(String.format("Function '%s' is called in %s but not defined in any file.", function, module.name));
+                }
+            }
+        }
+
+        if(!definitions.containsKey("main")){
+            throw new RuntimeException("Program lacks entry point 'main'");
+        }
+
+        // the global variables of the files lie one after the other
+        int[] globalBases = new int[modules.size()];
+        int globalCells = 0;
+
+        for(int i = 0; i < modules.size(); i++){
+            globalBases[i] = globalCells;
+            globalCells += modules.get(i).globalCells;
+        }
+
+        // the same entry code as CodeGenerator.generateCode, with the global variables of all files
+        Assembler asm = new Assembler();
+
+        Instr.Enter enter = new Instr.Enter(0);
+        asm.emit(enter);
+        int entryStart = asm.position();
+
+        for(int i = 0; i < modules.size(); i++){
+            ObjectModule module = modules.get(i);
+            emit(asm, module, 0, module.initLength, globalBases[i], false);
+        }
+
+        asm.emit(new Instr.Invoke("main", globalCells));
+        asm.emit(new Instr.Halt());
+
+        enter.q = asm.maxStackDepth(entryStart);
+
+        for(int i = 0; i < modules.size(); i++){
+            ObjectModule module = modules.get(i);
+            emit(asm, module, module.initLength, module.code.instructions.size(), globalBases[i], true);
+        }
+
+        Code code = asm.finish();
+
+        if(useSuperinstructions){
+            Superinstructions.fuse(code);
+        }
+
+        code.link();
+
+        return code;
+    }
+
+    // copies the instructions from to end of the module, its jump labels become labels of the assembler
+    // and the addresses of its global variables are moved behind those of the files before it
+    // (labels at end only belong to the functions, they point behind the module)
+    private void emit(Assembler asm, ObjectModule module, int from, int end, int globalBase, boolean labelsAtEnd){
+
+        Code code = module.code;
+
+        // module label -> label of the assembler, and pc -> labels to bind there (in the order of their numbers)
+        Map<Integer, Assembler.Label> labels = new HashMap<>();
+        Map<Integer, List<Assembler.Label>> labelsAt = new HashMap<>();
+
+        for(Map.Entry<Integer, Integer> label : new TreeMap<>(code.jumpTable).entrySet()){
+            int destination = label.getValue();
+
+            if(destination >= from && (destination < end || (labelsAtEnd && destination == end))){
+                Assembler.Label assemblerLabel = asm.newLabel();
+                labels.put(label.getKey(), assemblerLabel);
+                labelsAt.computeIfAbsent(destination, pc -> new ArrayList<>()).add(assemblerLabel);
+            }
+        }
+
+        Map<Integer, String> functionStarts = new HashMap<>();
+        code.functionNamesToCodeStart.forEach((function, start) -> functionStarts.put(start, function));
+
+        // global addresses are in the order of their positions
+        int nextGlobalAddress = 0;
+        while(nextGlobalAddress < module.globalAddresses.size() && module.globalAddresses.get(nextGlobalAddress) < from){
+            nextGlobalAddress++;
+        }
+
+        for(int pc = from; pc <= end; pc++){
+
+            if(functionStarts.containsKey(pc) && pc < end){
+                asm.function(functionStarts.get(pc));
+            }
+
+            for(Assembler.Label label : labelsAt.getOrDefault(pc, List.of())){
+                asm.bind(label);
+            }
+
+            if(pc == end){
+                break;
+            }
+
+            Instr instr = code.instructions.get(pc);
+
+            if(nextGlobalAddress < module.globalAddresses.size() && module.globalAddresses.get(nextGlobalAddress) == pc){
+                nextGlobalAddress++;
+                asm.emit(new Instr.LoadC((Integer) ((Instr.LoadC) instr).q + globalBase));
+                continue;
+            }
+
+            Integer jumpLabel = jumpLabelOf(instr);
+
+            if(jumpLabel == null){
+                asm.emit(instr);
+            }
+            else if(labels.containsKey(jumpLabel)){
+                asm.emitJump(instr, labels.get(jumpLabel));
+            }
+            else{
+                throw new RuntimeException(String.format("%s: '%s' at %d jumps to label %d, which is not in the same part of the module.",
+                        module.name, instr, pc, jumpLabel));
+            }
+        }
+    }
+
+    private static Integer jumpLabelOf(Instr instr){
+        if(instr instanceof Instr.Jump){
+            return ((Instr.Jump) instr).jumpLabel;
+        }
+        if(instr instanceof Instr.JumpZ){
+            return ((Instr.JumpZ) instr).jumpLabel;
+        }
+        if(instr instanceof Instr.LessJumpZ){
+            return ((Instr.LessJumpZ) instr).jumpLabel;
+        }
+        return null;
+    }
+
+    // a.c -> a (with the directory)
+    private static String withoutExtension(Path file){
+        String name = file.toString();
+        int dot = name.lastIndexOf('.');
+        return dot > name.lastIndexOf('/') ? name.substring(0, dot) : name;
+    }
+}
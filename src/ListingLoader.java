@@ -0,0 +1,341 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+// reads a .cma listing straight from the mapped file: no String per line, mnemonics are looked up by their bytes
+// and numbers are parsed in place (only string arguments and function labels become Strings)
+// large files are split at line boundaries and the chunks are decoded in parallel, their label tables are merged afterward
+public class ListingLoader {
+
+    // below this size one thread decodes the whole file
+    static final int PARALLEL_THRESHOLD = 1 << 20;
+    static final int MIN_CHUNK_SIZE = 1 << 18;
+
+    // mnemonics by their ASCII bytes (open addressing, the size is a power of two)
+    static final byte[][] mnemonicBytes = new byte[128][];
+    static final InstructionParser[] mnemonicParsers = new InstructionParser[128];
+
+    static {
+        for(Map.Entry<String, InstructionParser> mnemonic : Code.mnemonics.entrySet()){
+            byte[] bytes = mnemonic.getKey().getBytes(StandardCharsets.US_ASCII);
+
+            int slot = hash(bytes, 0, bytes.length);
+            while(mnemonicBytes[slot] != null){
+                slot = (slot + 1) & (mnemonicBytes.length - 1);
+            }
+            mnemonicBytes[slot] = bytes;
+            mnemonicParsers[slot] = mnemonic.getValue();
+        }
+    }
+
+    // reads the argument of an instruction behind its mnemonic (see Code.mnemonics)
+    interface InstructionParser {
+        Instr parse(Cursor cursor);
+    }
+
+    // the argument part of one line
+    static class Cursor {
+
+        final ByteBuffer bytes;
+
+        // position is right behind the space after the mnemonic, end is the end of the line
+        int position;
+        int end;
+
+        Cursor(ByteBuffer bytes){
+            this.bytes = bytes;
+        }
+
+        boolean hasArgument(){
+            return position < end;
+        }
+
+        // the rest of the line
+        int readInt(){
+
+            if(!hasArgument()){
+                throw new RuntimeException("The instruction needs an argument.");
+            }
+
+            int i = position;
+            boolean negative = bytes.get(i) == '-';
+            if(negative){
+                i++;
+            }
+
+            long value = 0;
+            for(; i < end; i++){
+                int digit = bytes.get(i) - '0';
+
+                if(digit < 0 || digit > 9 || value > Integer.MAX_VALUE + 1L){
+                    break;
+                }
+                value = 10 * value + digit;
+            }
+
+            if(i < end || i == position + (negative ? 1 : 0) || value > (negative ? Integer.MAX_VALUE + 1L : Integer.MAX_VALUE)){
+                throw new RuntimeException(String.format("'%s' is not an int.", text(position, end)));
+            }
+
+            position = end;
+            return (int) (negative ? -value : value);
+        }
+
+        // 'text' up to the end of the line
+        boolean isQuotedToEnd(){
+            return end - position >= 2 && bytes.get(position) == '\'' && bytes.get(end - 1) == '\'';
+        }
+
+        String readQuotedToEnd(){
+            String text = text(position + 1, end - 1);
+            position = end;
+            return text;
+        }
+
+        // 'name' in front of the last "' " of the line
+        String readQuotedName(){
+
+            int separator = -1;
+            for(int i = end - 2; i > position; i--){
+                if(bytes.get(i) == '\'' && bytes.get(i + 1) == ' '){
+                    separator = i;
+                    break;
+                }
+            }
+
+            if(separator == -1 || bytes.get(position) != '\''){
+                throw new RuntimeException("Expected a function name and a number of arguments like 'f' 2.");
+            }
+
+            String name = text(position + 1, separator);
+            position = separator + 2;
+            return name;
+        }
+
+        String text(int from, int to){
+            byte[] text = new byte[to - from];
+            bytes.get(from, text);
+            return new String(text, StandardCharsets.UTF_8);
+        }
+    }
+
+    // the instructions and labels of a piece of the file, label destinations are relative to the piece
+    static class Chunk {
+        List<Instr> instructions = new ArrayList<>();
+        Map<Integer, Integer> jumpTable = new HashMap<>();
+        Map<String, Integer> functionNamesToCodeStart = new HashMap<>();
+    }
+
+    // appends the instructions and labels of the file to the code
+    static void load(Path path, Code code){
+
+        ByteBuffer bytes;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read the program " + path, e);
+        }
+
+        load(bytes, code);
+    }
+
+    // a listing that is already in memory (e.g. the small files of the CompileCache, where mapping costs more than reading)
+    static void load(ByteBuffer bytes, Code code){
+
+        int[] boundaries = chunkBoundaries(bytes);
+
+        List<Chunk> chunks = IntStream.range(0, boundaries.length - 1)
+                .parallel()
+                .mapToObj(i -> decode(bytes, boundaries[i], boundaries[i + 1]))
+                .toList();
+
+        for(Chunk chunk : chunks){
+            int offset = code.instructions.size();
+
+            chunk.jumpTable.forEach((label, destination) -> code.jumpTable.put(label, offset + destination));
+            chunk.functionNamesToCodeStart.forEach((name, destination) -> code.functionNamesToCodeStart.put(name, offset + destination));
+
+            code.instructions.addAll(chunk.instructions);
+        }
+    }
+
+    // starts of the chunks and the end of the file, every chunk starts at the beginning of a line
+    private static int[] chunkBoundaries(ByteBuffer bytes){
+
+        int size = bytes.limit();
+        int nChunks = size < PARALLEL_THRESHOLD ? 1 : Math.min(Runtime.getRuntime().availableProcessors(), size / MIN_CHUNK_SIZE);
+
+        int[] boundaries = new int[nChunks + 1];
+        boundaries[nChunks] = size;
+
+        for(int i = 1; i < nChunks; i++){
+            int boundary = Math.max((int) ((long) size * i / nChunks), boundaries[i - 1]);
+
+            while(boundary < size && bytes.get(boundary - 1) != '\n'){
+                boundary++;
+            }
+            boundaries[i] = boundary;
+        }
+
+        return boundaries;
+    }
+
+    private static Chunk decode(ByteBuffer bytes, int start, int end){
+
+        Chunk chunk = new Chunk();
+        Cursor cursor = new Cursor(bytes);
+
+        int lineStart = start;
+
+        while(lineStart < end){
+
+            int lineEnd = lineStart;
+            while(lineEnd < end && bytes.get(lineEnd) != '\n'){
+                lineEnd++;
+            }
+
+            // \r\n line endings
+            int contentEnd = lineEnd > lineStart && bytes.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+
+            try {
+                decodeLine(bytes, lineStart, contentEnd, cursor, chunk);
+            } catch (RuntimeException e) {
+                throw new RuntimeException(String.format("Could not parse line %d \"%s\": %s",
+                        lineNumber(bytes, lineStart), cursor.text(lineStart, contentEnd), e.getMessage()), e);
+            }
+
+            lineStart = lineEnd + 1;
+        }
+
+        return chunk;
+    }
+
+    // [label: ...] mnemonic [argument], e.g. "factorial: 0: LoadR -4" or "LoadC 'a string'"
+    private static void decodeLine(ByteBuffer bytes, int start, int end, Cursor cursor, Chunk chunk){
+
+        if(isBlank(bytes, start, end)){
+            return;
+        }
+
+        int position = start;
+
+        // the labels in front end with a :
+        while(true){
+            int tokenEnd = indexOfSpace(bytes, position, end);
+            if(tokenEnd == end || tokenEnd == position || bytes.get(tokenEnd - 1) != ':'){
+                break;
+            }
+            addLabel(bytes, position, tokenEnd - 1, cursor, chunk);
+            position = tokenEnd + 1;
+        }
+
+        int mnemonicEnd = indexOfSpace(bytes, position, end);
+        InstructionParser parser = parserOf(bytes, position, mnemonicEnd);
+
+        if(parser == null){
+            throw new RuntimeException(String.format("Unknown instruction '%s'.", cursor.text(position, mnemonicEnd)));
+        }
+
+        cursor.position = Math.min(mnemonicEnd + 1, end);
+        cursor.end = end;
+
+        chunk.instructions.add(parser.parse(cursor));
+    }
+
+    // the next instruction of the chunk is the destination
+    private static void addLabel(ByteBuffer bytes, int start, int end, Cursor cursor, Chunk chunk){
+
+        int destination = chunk.instructions.size();
+        byte first = bytes.get(start);
+
+        if(('a' <= first && first <= 'z') || ('A' <= first && first <= 'Z')){
+            chunk.functionNamesToCodeStart.put(cursor.text(start, end), destination);
+        }
+        else{
+            int savedPosition = cursor.position;
+            int savedEnd = cursor.end;
+
+            cursor.position = start;
+            cursor.end = end;
+            chunk.jumpTable.put(cursor.readInt(), destination);
+
+            cursor.position = savedPosition;
+            cursor.end = savedEnd;
+        }
+    }
+
+    private static InstructionParser parserOf(ByteBuffer bytes, int start, int end){
+
+        int slot = hash(bytes, start, end);
+
+        while(mnemonicBytes[slot] != null){
+            if(matches(mnemonicBytes[slot], bytes, start, end)){
+                return mnemonicParsers[slot];
+            }
+            slot = (slot + 1) & (mnemonicBytes.length - 1);
+        }
+        return null;
+    }
+
+    private static boolean matches(byte[] mnemonic, ByteBuffer bytes, int start, int end){
+
+        if(mnemonic.length != end - start){
+            return false;
+        }
+        for(int i = 0; i < mnemonic.length; i++){
+            if(mnemonic[i] != bytes.get(start + i)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] bytes, int start, int end){
+        return hash(ByteBuffer.wrap(bytes), start, end);
+    }
+
+    private static int hash(ByteBuffer bytes, int start, int end){
+        int hash = 0;
+        for(int i = start; i < end; i++){
+            hash = 31 * hash + bytes.get(i);
+        }
+        return (hash ^ (hash >>> 7)) & (mnemonicBytes.length - 1);
+    }
+
+    private static int indexOfSpace(ByteBuffer bytes, int start, int end){
+        int i = start;
+        while(i < end && bytes.get(i) != ' '){
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isBlank(ByteBuffer bytes, int start, int end){
+        for(int i = start; i < end; i++){
+            if(!Character.isWhitespace(bytes.get(i))){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // only needed for error messages, so the lines are counted then
+    private static int lineNumber(ByteBuffer bytes, int position){
+        int line = 1;
+        for(int i = 0; i < position; i++){
+            if(bytes.get(i) == '\n'){
+                line++;
+            }
+        }
+        return line;
+    }
+}
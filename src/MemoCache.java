@@ -0,0 +1,114 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// results of pure functions (MemoInvoke) by function and argument values
+// holds at most capacity results, the least recently used one goes first
+// usage: vm.memoCache = new MemoCache(10000); ... System.out.println(vm.memoCache);
+public class MemoCache {
+
+    int capacity;
+
+    // in access order, so the eldest entry is the least recently used
+    LinkedHashMap<Key, Integer> results;
+
+    long hits;
+    long misses;
+    long evictions;
+
+    static class Key {
+
+        final int functionStart;
+        final int[] arguments;
+        final int hash;
+
+        Key(int functionStart, int[] arguments){
+            this.functionStart = functionStart;
+            this.arguments = arguments;
+            this.hash = 31 * functionStart + Arrays.hashCode(arguments);
+        }
+
+        @Override
+        public boolean equals(Object other){
+            return other instanceof Key key && functionStart == key.functionStart && Arrays.equals(arguments, key.arguments);
+        }
+
+        @Override
+        public int hashCode(){
+            return hash;
+        }
+    }
+
+    public MemoCache(int capacity){
+
+        if(capacity <= 0){
+            throw new RuntimeException(String.format("Memo cache capacity must be positive, not %d.", capacity));
+        }
+
+        this.capacity = capacity;
+
+        results = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Integer> eldest){
+                if(size() > MemoCache.this.capacity){
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // the n arguments of the call are in stack[top - n + 1 .. top]
+    Key key(int functionStart, int[] stack, int top, int n){
+        return new Key(functionStart, Arrays.copyOfRange(stack, top - n + 1, top + 1));
+    }
+
+    // null if the call wasn't seen yet (or was evicted)
+    Integer lookup(Key key){
+        Integer result = results.get(key);
+
+        if(result != null){
+            hits++;
+        }
+        else{
+            misses++;
+        }
+        return result;
+    }
+
+    void store(Key key, int result){
+        results.put(key, result);
+    }
+
+    public long hits(){
+        return hits;
+    }
+
+    public long misses(){
+        return misses;
+    }
+
+    public long evictions(){
+        return evictions;
+    }
+
+    public int size(){
+        return results.size();
+    }
+
+    // results and counters, the VM does this when it runs another program
+    public void clear(){
+        results.clear();
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    @Override
+    public String toString(){
+        long calls = hits + misses;
+        return String.format("memo cache: %d hits, %d misses (%.1f%% hits), %d evictions, %d of %d entries used",
+                hits, misses, calls == 0 ? 0.0 : 100.0 * hits / calls, evictions, results.size(), capacity);
+    }
+}
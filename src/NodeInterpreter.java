@@ -0,0 +1,1093 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+// alternative execution engine: every basic block of a function becomes a list of small node trees
+// (the operand stack is only simulated while building, the trees pass values directly)
+// nodes specialize themselves the first time they run (frame or global addresses, constant operands,
+// power of two divisors) and replace themselves by a generic node when a speculation fails
+public class NodeInterpreter {
+
+    VirtualMachine vm;
+    int[] stack;
+
+    TreeSet<Integer> functionStarts;
+
+    // function start -> tree, built on the first invocation
+    Map<Integer, FunctionNode> functions = new HashMap<>();
+
+    public NodeInterpreter(VirtualMachine vm){
+        this.vm = vm;
+        this.stack = vm.stack;
+
+        functionStarts = new TreeSet<>(vm.functionTable.values());
+
+        // the code in front of the first function allocates the globals and calls main
+        functionStarts.add(0);
+    }
+
+    public void run(){
+        // the entry code has no frame, its stack starts at -1 like in the interpreter
+        functionAt(0).execute(-1);
+    }
+
+    private FunctionNode functionAt(int start){
+
+        FunctionNode function = functions.get(start);
+
+        if(function == null){
+            Integer nextFunctionStart = functionStarts.higher(start);
+            int end = nextFunctionStart != null ? nextFunctionStart : vm.exitAddress;
+
+            function = new TreeBuilder(start, end).build();
+            functions.put(start, function);
+        }
+
+        return function;
+    }
+
+    private static int compute(int operator, int left, int right){
+        switch(operator){
+            case Instr.ADD:
+                return left + right;
+            case Instr.SUB:
+                return left - right;
+            case Instr.MUL:
+                return left * right;
+            case Instr.DIV:
+                return left / right;
+            case Instr.MOD:
+                return left % right;
+            case Instr.LESS:
+                return left < right ? 1 : 0;
+            case Instr.LESS_OR_EQUAL:
+                return left <= right ? 1 : 0;
+            case Instr.GREATER:
+                return left > right ? 1 : 0;
+            case Instr.GREATER_OR_EQUAL:
+                return left >= right ? 1 : 0;
+            case Instr.EQUAL:
+                return left == right ? 1 : 0;
+            case Instr.UNEQUAL:
+                return left != right ? 1 : 0;
+            case Instr.AND:
+                return (left != 0 && right != 0) ? 1 : 0;
+            case Instr.OR:
+                return (left != 0 || right != 0) ? 1 : 0;
+            default:
+                throw new RuntimeException("Unknown binary operator " + operator);
+        }
+    }
+
+    abstract static class Node {
+
+        Node parent;
+
+        <T extends Node> T adopt(T child){
+            child.parent = this;
+            return child;
+        }
+
+        void replaceChild(ExpressionNode oldChild, ExpressionNode newChild){
+            throw new RuntimeException(getClass().getSimpleName() + " has no children to replace.");
+        }
+    }
+
+    abstract static class ExpressionNode extends Node {
+
+        abstract int execute(int fp);
+
+        // puts the replacement where this node was in the tree
+        <T extends ExpressionNode> T replace(T replacement){
+            parent.replaceChild(this, replacement);
+            replacement.parent = parent;
+            return replacement;
+        }
+    }
+
+    abstract static class StatementNode extends Node {
+        abstract void execute(int fp);
+    }
+
+    // expressions
+
+    static class ConstantNode extends ExpressionNode {
+
+        final int value;
+
+        ConstantNode(int value){
+            this.value = value;
+        }
+
+        @Override
+        int execute(int fp){
+            return value;
+        }
+    }
+
+    // LoadRC j
+    static class FrameAddressNode extends ExpressionNode {
+
+        final int j;
+
+        FrameAddressNode(int j){
+            this.j = j;
+        }
+
+        @Override
+        int execute(int fp){
+            return fp + j;
+        }
+    }
+
+    // not specialized yet, decides on the first execution how the address is computed
+    class LoadNode extends ExpressionNode {
+
+        ExpressionNode address;
+
+        LoadNode(ExpressionNode address){
+            this.address = adopt(address);
+        }
+
+        @Override
+        int execute(int fp){
+
+            ExpressionNode specialized;
+
+            if(address instanceof FrameAddressNode){
+                specialized = new FrameLoadNode(((FrameAddressNode) address).j);
+            }
+            else if(address instanceof ConstantNode && ((ConstantNode) address).value < Heap.BASE){
+                specialized = new GlobalLoadNode(((ConstantNode) address).value);
+            }
+            else{
+                specialized = new IndirectLoadNode(address);
+            }
+
+            return replace(specialized).execute(fp);
+        }
+
+        @Override
+        void replaceChild(ExpressionNode oldChild, ExpressionNode newChild){
+            address = newChild;
+        }
+    }
+
+    class FrameLoadNode extends ExpressionNode {
+
+        final int j;
+
+        FrameLoadNode(int j){
+            this.j = j;
+        }
+
+        @Override
+        int execute(int fp){
+            return stack[fp + j];
+        }
+    }
+
+    class GlobalLoadNode extends ExpressionNode {
+
+        final int address;
+
+        GlobalLoadNode(int address){
+            this.address = address;
+        }
+
+        @Override
+        int execute(int fp){
+            return stack[address];
+        }
+    }
+
+    class IndirectLoadNode extends ExpressionNode {
+
+        ExpressionNode address;
+
+        IndirectLoadNode(ExpressionNode address){
+            this.address = adopt(address);
+        }
+
+        @Override
+        int execute(int fp){
+            return vm.load(address.execute(fp));
+        }
+
+        @Override
+        void replaceChild(ExpressionNode oldChild, ExpressionNode newChild){
+            address = newChild;
+        }
+    }
+
+    // not specialized yet, decides on the first execution how the address is computed
+    // the stored value is also the result (like Store leaves it on the stack)
+    class StoreNode extends ExpressionNode {
+
+        ExpressionNode value;
+        ExpressionNode address;
+
+        StoreNode(ExpressionNode value, ExpressionNode address){
+            this.value = adopt(value);
+            this.address = adopt(address);
+        }
+
+        @Override
+        int execute(int fp){
+
+            ExpressionNode specialized;
+
+            if(address instanceof FrameAddressNode){
+                specialized = new DirectStoreNode(value, ((FrameAddressNode) address).j, true);
+            }
+            else if(address instanceof ConstantNode && ((ConstantNode) address).value < Heap.BASE){
+                specialized = new DirectStoreNode(value, ((ConstantNode) address).value, false);
+            }
+            else{
+                specialized = new IndirectStoreNode(value, address);
+            }
+
+            return replace(specialized).execute(fp);
+        }
+
+        @Override
+        void replaceChild(ExpressionNode oldChild, ExpressionNode newChild){
+            if(oldChild == value){
+                value = newChild;
+            }
+            else{
+                address = newChild;
+            }
+        }
+    }
+
+    // stores relative to the frame pointer or to an absolute (global) address
+    class DirectStoreNode extends ExpressionNode {
+
+        ExpressionNode value;
+        final int address;
+        final boolean relativeToFrame;
+
+        DirectStoreNode(ExpressionNode value, int address, boolean relativeToFrame){
+            this.value = adopt(value);
+            this.address = address;
+            this.relativeToFrame = relativeToFrame;
+        }
+
+        @Override
+        int execute(int fp){
+            int v = value.execute(fp);
+            stack[relativeToFrame ? fp + address : address] = v;
+            return v;
+        }
+
+        @Override
+        void replaceChild(ExpressionNode oldChild, ExpressionNode newChild){
+            value = newChild;
+        }
+    }
+
+    class IndirectStoreNode extends ExpressionNode {
+
+        ExpressionNode value;
+        ExpressionNode address;
+
+        IndirectStoreNode(ExpressionNode value, ExpressionNode address){
+            this.value = adopt(value);
+            this.address = adopt(address);
+        }
+
+        @Override
+        int execute(int fp){
+            // same order as on the stack: value first, then the address
+            int v = value.execute(fp);
+            vm.store(address.execute(fp), v);
+            return v;
+        }
+
+        @Override
+        void replaceChild(ExpressionNode oldChild, ExpressionNode newChild){
+            if(oldChild == value){
+                value = newChild;
+            }
+            else{
+                address = newChild;
+            }
+        }
+    }
+
+    // not specialized yet, looks at its operands on the first execution
+    static class BinaryNode extends ExpressionNode {
+
+        final int operator;
+        ExpressionNode left;
+        ExpressionNode right;
+
+        BinaryNode(int operator, ExpressionNode left, ExpressionNode right){
+            this.operator = operator;
+            this.left = adopt(left);
+            this.right = adopt(right);
+        }
+
+        @Override
+        int execute(int fp){
+
+            if(left instanceof ConstantNode && right instanceof ConstantNode){
+                int folded = compute(operator, ((ConstantNode) left).value, ((ConstantNode) right).value);
+                return replace(new ConstantNode(folded)).execute(fp);
+            }
+
+            if(right instanceof ConstantNode){
+                return replace(new ConstantRightNode(operator, left, ((ConstantNode) right).value)).execute(fp);
+            }
+
+            int l = left.execute(fp);
+            int r = right.execute(fp);
+
+            boolean isDivision = operator == Instr.DIV || operator == Instr.MOD;
+
+            if(isDivision && PowerOfTwoDivisionNode.applies(l, r)){
+                replace(new PowerOfTwoDivisionNode(operator, left, right, r));
+            }
+            else{
+                replace(new GenericBinaryNode(operator, left, right));
+            }
+
+            return compute(operator, l, r);
+        }
+
+        @Override
+        void replaceChild(ExpressionNode oldChild, ExpressionNode newChild){
+            if(oldChild == left){
+                left = newChild;
+            }
+            else{
+                right = newChild;
+            }
+        }
+    }
+
+    static class GenericBinaryNode extends BinaryNode {
+
+        GenericBinaryNode(int operator, ExpressionNode left, ExpressionNode right){
+            super(operator, left, right);
+        }
+
+        @Override
+        int execute(int fp){
+            int l = left.execute(fp);
+            return compute(operator, l, right.execute(fp));
+        }
+    }
+
+    static class ConstantRightNode extends ExpressionNode {
+
+        final int operator;
+        ExpressionNode left;
+        final int right;
+
+        ConstantRightNode(int operator, ExpressionNode left, int right){
+            this.operator = operator;
+            this.left = adopt(left);
+            this.right = right;
+        }
+
+        @Override
+        int execute(int fp){
+            return compute(operator, left.execute(fp), right);
+        }
+
+        @Override
+        void replaceChild(ExpressionNode oldChild, ExpressionNode newChild){
+            left = newChild;
+        }
+    }
+
+    // speculates that the divisor stays the same power of two and the dividend stays non-negative
+    // (then / and % are a shift and a mask), becomes a generic node otherwise
+    static class PowerOfTwoDivisionNode extends BinaryNode {
+
+        final int divisor;
+        final int shift;
+
+        PowerOfTwoDivisionNode(int operator, ExpressionNode left, ExpressionNode right, int divisor){
+            super(operator, left, right);
+            this.divisor = divisor;
+            this.shift = Integer.numberOfTrailingZeros(divisor);
+        }
+
+        static boolean applies(int left, int right){
+            return left >= 0 && right > 0 && Integer.bitCount(right) == 1;
+        }
+
+        @Override
+        int execute(int fp){
+            int l = left.execute(fp);
+            int r = right.execute(fp);
+
+            if(r != divisor || l < 0){
+                replace(new GenericBinaryNode(operator, left, right));
+                return compute(operator, l, r);
+            }
+
+            return operator == Instr.DIV ? l >> shift : l & (divisor - 1);
+        }
+    }
+
+    class MallocNode extends ExpressionNode {
+
+        ExpressionNode size;
+
+        MallocNode(ExpressionNode size){
+            this.size = adopt(size);
+        }
+
+        @Override
+        int execute(int fp){
+            return vm.malloc(size.execute(fp));
+        }
+
+        @Override
+        void replaceChild(ExpressionNode oldChild, ExpressionNode newChild){
+            size = newChild;
+        }
+    }
+
+    // Neg and FlipSign
+    static class UnaryNode extends ExpressionNode {
+
+        final int operator;
+        ExpressionNode operand;
+
+        UnaryNode(int operator, ExpressionNode operand){
+            this.operator = operator;
+            this.operand = adopt(operand);
+        }
+
+        @Override
+        int execute(int fp){
+            int value = operand.execute(fp);
+            return operator == Instr.NEG ? (value == 0 ? 1 : 0) : -value;
+        }
+
+        @Override
+        void replaceChild(ExpressionNode oldChild, ExpressionNode newChild){
+            operand = newChild;
+        }
+    }
+
+    class InvokeNode extends ExpressionNode {
+
+        final int functionStart;
+        final ExpressionNode[] arguments;
+
+        // top of the stack relative to the frame pointer when the interpreter would execute the call
+        final int stackPointer;
+
+        FunctionNode callee;
+
+        // a MemoInvoke, looks the result up in the memo cache of the VM first (if there is one)
+        boolean memoized;
+
+        // arguments[0] is the one pushed first
+        InvokeNode(int functionStart, ExpressionNode[] arguments, int stackPointer){
+            this.functionStart = functionStart;
+            this.arguments = arguments;
+            this.stackPointer = stackPointer;
+
+            for(ExpressionNode argument : arguments){
+                if(argument != null){
+                    adopt(argument);
+                }
+            }
+        }
+
+        @Override
+        int execute(int fp){
+
+            int top = fp + stackPointer;
+
+            // the arguments go to memory where the interpreter would have them
+            int firstArgument = top - arguments.length + 1;
+            for(int i = 0; i < arguments.length; i++){
+                if(arguments[i] != null){
+                    stack[firstArgument + i] = arguments[i].execute(fp);
+                }
+            }
+
+            MemoCache.Key key = null;
+            if(memoized && vm.memoCache != null){
+                key = vm.memoCache.key(functionStart, stack, top, arguments.length);
+                Integer result = vm.memoCache.lookup(key);
+
+                if(result != null){
+                    stack[firstArgument] = result;
+                    return result;
+                }
+            }
+
+            vm.useFuel(1);
+
+            if(callee == null){
+                callee = functionAt(functionStart);
+            }
+
+            // return value, extreme pointer, old frame pointer, return address
+            stack[top + 1] = 0;
+            stack[top + 2] = vm.extremePointer;
+            stack[top + 3] = fp;
+            stack[top + 4] = vm.exitAddress;
+
+            callee.execute(top + 4);
+
+            vm.extremePointer = stack[top + 2];
+
+            // where the interpreter leaves the return value after removing the arguments
+            // (Halt reads the one of main from stack[0], in front of the globals that were main's "arguments")
+            stack[firstArgument] = stack[top + 1];
+
+            if(key != null){
+                vm.memoCache.store(key, stack[top + 1]);
+            }
+
+            return stack[top + 1];
+        }
+
+        @Override
+        void replaceChild(ExpressionNode oldChild, ExpressionNode newChild){
+            for(int i = 0; i < arguments.length; i++){
+                if(arguments[i] == oldChild){
+                    arguments[i] = newChild;
+                }
+            }
+        }
+    }
+
+    // TailInvoke: leaves the block by continuing in the callee with the same frame
+    class TailCallNode extends Node {
+
+        final int functionStart;
+        final ExpressionNode[] arguments;
+        final int stackPointer;
+
+        FunctionNode callee;
+
+        // arguments[0] is the one pushed first
+        TailCallNode(int functionStart, ExpressionNode[] arguments, int stackPointer){
+            this.functionStart = functionStart;
+            this.arguments = arguments;
+            this.stackPointer = stackPointer;
+
+            for(ExpressionNode argument : arguments){
+                adopt(argument);
+            }
+        }
+
+        // the block the function continues with
+        BlockNode execute(int fp){
+
+            vm.useFuel(1);
+
+            // all arguments are computed on top of the stack before the ones of the frame are overwritten
+            int firstArgument = fp + stackPointer - arguments.length + 1;
+            for(int i = 0; i < arguments.length; i++){
+                stack[firstArgument + i] = arguments[i].execute(fp);
+            }
+
+            System.arraycopy(stack, firstArgument, stack, fp - 3 - arguments.length, arguments.length);
+            stack[fp - 3] = 0;
+
+            if(callee == null){
+                callee = functionAt(functionStart);
+            }
+
+            return callee.entry;
+        }
+
+        @Override
+        void replaceChild(ExpressionNode oldChild, ExpressionNode newChild){
+            for(int i = 0; i < arguments.length; i++){
+                if(arguments[i] == oldChild){
+                    arguments[i] = newChild;
+                }
+            }
+        }
+    }
+
+    // statements
+
+    // Pop: evaluates and forgets the value
+    static class ExpressionStatementNode extends StatementNode {
+
+        ExpressionNode expression;
+
+        ExpressionStatementNode(ExpressionNode expression){
+            this.expression = adopt(expression);
+        }
+
+        @Override
+        void execute(int fp){
+            expression.execute(fp);
+        }
+
+        @Override
+        void replaceChild(ExpressionNode oldChild, ExpressionNode newChild){
+            expression = newChild;
+        }
+    }
+
+    class FreeNode extends StatementNode {
+
+        ExpressionNode address;
+
+        FreeNode(ExpressionNode address){
+            this.address = adopt(address);
+        }
+
+        @Override
+        void execute(int fp){
+            vm.free(address.execute(fp));
+        }
+
+        @Override
+        void replaceChild(ExpressionNode oldChild, ExpressionNode newChild){
+            address = newChild;
+        }
+    }
+
+    class PrintNode extends StatementNode {
+
+        ExpressionNode expression;
+        final boolean isString;
+
+        PrintNode(ExpressionNode expression, boolean isString){
+            this.expression = adopt(expression);
+            this.isString = isString;
+        }
+
+        @Override
+        void execute(int fp){
+            int value = expression.execute(fp);
+
+            if(isString){
+                vm.printString(value);
+            }
+            else{
+                vm.print(value);
+            }
+        }
+
+        @Override
+        void replaceChild(ExpressionNode oldChild, ExpressionNode newChild){
+            expression = newChild;
+        }
+    }
+
+    class EnterNode extends StatementNode {
+
+        final int q;
+
+        EnterNode(int q){
+            this.q = q;
+        }
+
+        @Override
+        void execute(int fp){
+            // the stack pointer equals the frame pointer when a function is entered
+            vm.enter(fp, q);
+        }
+    }
+
+    // the node engine keeps calls on the JVM stack, a run can't be continued from its memory alone
+    class SnapshotNode extends StatementNode {
+
+        @Override
+        void execute(int fp){
+            if(vm.snapshotListener != null){
+                throw new RuntimeException("Node engine can't take snapshots, snapshot() needs the interpreter.");
+            }
+        }
+    }
+
+    // basic block: statements and how the block is left
+    class BlockNode extends Node {
+
+        static final int GOTO = 0;
+        static final int BRANCH_IF_ZERO = 1;
+        static final int RETURN = 2;
+        static final int HALT = 3;
+        static final int TAIL_CALL = 4;
+
+        StatementNode[] statements;
+
+        int exitKind;
+        ExpressionNode condition;
+
+        // the following block (GOTO, or BRANCH_IF_ZERO when the condition is not zero)
+        BlockNode next;
+        BlockNode branchTarget;
+
+        // fuel of the VM used up when going on to next or branchTarget (only for backward jumps)
+        int nextCost;
+        int branchTargetCost;
+
+        TailCallNode tailCall;
+
+        // null: leave the function
+        BlockNode execute(int fp){
+
+            for(StatementNode statement : statements){
+                statement.execute(fp);
+            }
+
+            switch(exitKind){
+                case GOTO:
+                    if(nextCost != 0){
+                        vm.useFuel(nextCost);
+                    }
+                    return next;
+                case BRANCH_IF_ZERO:
+                    if(condition.execute(fp) == 0){
+                        if(branchTargetCost != 0){
+                            vm.useFuel(branchTargetCost);
+                        }
+                        return branchTarget;
+                    }
+                    return next;
+                case HALT:
+                    vm.halt();
+                    return null;
+                case TAIL_CALL:
+                    return tailCall.execute(fp);
+                default:
+                    return null;
+            }
+        }
+
+        @Override
+        void replaceChild(ExpressionNode oldChild, ExpressionNode newChild){
+            condition = newChild;
+        }
+    }
+
+    static class FunctionNode {
+
+        BlockNode entry;
+
+        void execute(int fp){
+            BlockNode block = entry;
+
+            while(block != null){
+                block = block.execute(fp);
+            }
+        }
+    }
+
+    // simulates the operand stack of a function's instructions to build the node trees
+    private class TreeBuilder {
+
+        int start;
+        int end;
+
+        // cells allocated by all Alloc instructions of the function
+        int frameSize;
+
+        Map<Integer, BlockNode> blocks = new HashMap<>();
+
+        List<ExpressionNode> operandStack = new ArrayList<>();
+        List<StatementNode> statements = new ArrayList<>();
+
+        TreeBuilder(int start, int end){
+            this.start = start;
+            this.end = end;
+        }
+
+        FunctionNode build(){
+
+            int[] opcodes = vm.opcodes;
+            int[] operands = vm.operands;
+
+            TreeSet<Integer> leaders = new TreeSet<>();
+            leaders.add(start);
+
+            for(int pc = start; pc < end; pc++){
+                switch(opcodes[pc]){
+                    case Instr.JUMP:
+                    case Instr.JUMPZ:
+                    case Instr.LESS_JUMPZ:
+                        checkInFunction(operands[pc]);
+                        leaders.add(operands[pc]);
+                        leaders.add(pc + 1);
+                        break;
+                    case Instr.RETURN:
+                    case Instr.TAIL_INVOKE:
+                    case Instr.HALT:
+                        leaders.add(pc + 1);
+                        break;
+                    case Instr.ALLOC:
+                        frameSize += operands[pc];
+                        break;
+                }
+            }
+            leaders.remove(end);
+
+            for(int leader : leaders){
+                blocks.put(leader, new BlockNode());
+            }
+
+            for(int leader : leaders){
+                Integer nextLeader = leaders.higher(leader);
+                buildBlock(leader, nextLeader != null ? nextLeader : end);
+            }
+
+            FunctionNode function = new FunctionNode();
+            function.entry = blocks.get(start);
+            return function;
+        }
+
+        private void buildBlock(int blockStart, int blockEnd){
+
+            int[] opcodes = vm.opcodes;
+            int[] operands = vm.operands;
+
+            BlockNode block = blocks.get(blockStart);
+            block.exitKind = -1;
+
+            operandStack.clear();
+            statements.clear();
+
+            for(int pc = blockStart; pc < blockEnd && block.exitKind == -1; pc++){
+
+                int operand = operands[pc];
+
+                switch(opcodes[pc]){
+                    case Instr.LOADC:
+                        push(new ConstantNode(operand));
+                        break;
+                    case Instr.LOADRC:
+                        push(new FrameAddressNode(operand));
+                        break;
+                    case Instr.LOADR:
+                        push(new LoadNode(new FrameAddressNode(operand)));
+                        break;
+                    case Instr.LOAD:
+                        push(new LoadNode(pop()));
+                        break;
+                    case Instr.STORE: {
+                        ExpressionNode address = pop();
+                        push(new StoreNode(pop(), address));
+                        break;
+                    }
+                    case Instr.STORE_POP: {
+                        ExpressionNode address = pop();
+                        addStatement(new ExpressionStatementNode(new StoreNode(pop(), address)));
+                        break;
+                    }
+                    case Instr.STORER_POP:
+                        addStatement(new ExpressionStatementNode(new StoreNode(pop(), new FrameAddressNode(operand))));
+                        break;
+                    case Instr.POP:
+                        addStatement(new ExpressionStatementNode(pop()));
+                        break;
+                    case Instr.ALLOC:
+                        // the frame has a fixed size, see frameSize
+                        checkEmptyStack(pc);
+                        break;
+                    case Instr.ENTER:
+                        addStatement(new EnterNode(operand));
+                        break;
+                    case Instr.ADD:
+                    case Instr.SUB:
+                    case Instr.MUL:
+                    case Instr.DIV:
+                    case Instr.MOD:
+                    case Instr.LESS:
+                    case Instr.LESS_OR_EQUAL:
+                    case Instr.GREATER:
+                    case Instr.GREATER_OR_EQUAL:
+                    case Instr.EQUAL:
+                    case Instr.UNEQUAL:
+                    case Instr.AND:
+                    case Instr.OR: {
+                        ExpressionNode right = pop();
+                        push(new BinaryNode(opcodes[pc], pop(), right));
+                        break;
+                    }
+                    case Instr.ADDC:
+                        push(new BinaryNode(Instr.ADD, pop(), new ConstantNode(operand)));
+                        break;
+                    case Instr.NEG:
+                    case Instr.FLIP_SIGN:
+                        push(new UnaryNode(opcodes[pc], pop()));
+                        break;
+                    case Instr.MALLOC:
+                        push(new MallocNode(pop()));
+                        break;
+                    case Instr.FREE:
+                        addStatement(new FreeNode(pop()));
+                        break;
+                    case Instr.SNAPSHOT:
+                        addStatement(new SnapshotNode());
+                        break;
+                    case Instr.PRINT:
+                    case Instr.PRINT_STRING:
+                        addStatement(new PrintNode(pop(), opcodes[pc] == Instr.PRINT_STRING));
+                        break;
+                    case Instr.INVOKE:
+                        push(invoke(operand, vm.secondOperands[pc]));
+                        break;
+                    case Instr.MEMO_INVOKE: {
+                        InvokeNode invoke = invoke(operand, vm.secondOperands[pc]);
+                        invoke.memoized = true;
+                        push(invoke);
+                        break;
+                    }
+                    case Instr.MARK:
+                        // LoadC 0; Mark; LoadC f; Call; Slide m of older .cma files
+                        if(!isOldCallSequence(pc)){
+                            throw unsupported(pc);
+                        }
+                        // the cell reserved for the return value
+                        pop();
+                        push(invoke(operands[pc + 1], operands[pc + 3]));
+                        pc += 3;
+                        break;
+                    case Instr.JUMP:
+                        block.exitKind = BlockNode.GOTO;
+                        block.next = blocks.get(operand);
+                        block.nextCost = backwardJumpCost(pc, operand);
+                        break;
+                    case Instr.JUMPZ:
+                        block.exitKind = BlockNode.BRANCH_IF_ZERO;
+                        block.condition = block.adopt(pop());
+                        block.branchTarget = blocks.get(operand);
+                        block.branchTargetCost = backwardJumpCost(pc, operand);
+                        block.next = blocks.get(pc + 1);
+                        break;
+                    case Instr.LESS_JUMPZ: {
+                        ExpressionNode right = pop();
+                        block.exitKind = BlockNode.BRANCH_IF_ZERO;
+                        block.condition = block.adopt(new BinaryNode(Instr.LESS, pop(), right));
+                        block.branchTarget = blocks.get(operand);
+                        block.branchTargetCost = backwardJumpCost(pc, operand);
+                        block.next = blocks.get(pc + 1);
+                        break;
+                    }
+                    case Instr.RETURN:
+                        flushStack();
+                        block.exitKind = BlockNode.RETURN;
+                        break;
+                    case Instr.TAIL_INVOKE:
+                        block.exitKind = BlockNode.TAIL_CALL;
+                        block.tailCall = block.adopt(tailCall(operand, vm.secondOperands[pc]));
+                        flushStack();
+                        break;
+                    case Instr.HALT:
+                        flushStack();
+                        block.exitKind = BlockNode.HALT;
+                        break;
+                    default:
+                        throw unsupported(pc);
+                }
+            }
+
+            checkEmptyStack(blockEnd);
+
+            // falls through into the next block
+            if(block.exitKind == -1){
+                if(blockEnd >= end){
+                    throw new RuntimeException(String.format("Node engine: function at %d runs past its end.", start));
+                }
+                block.exitKind = BlockNode.GOTO;
+                block.next = blocks.get(blockEnd);
+            }
+
+            for(StatementNode statement : statements){
+                block.adopt(statement);
+            }
+            block.statements = statements.toArray(new StatementNode[0]);
+        }
+
+        private InvokeNode invoke(int functionStart, int nArguments){
+
+            // depth when the interpreter would execute the call (arguments included)
+            int depth = operandStack.size();
+
+            // the call of main counts the allocated globals as arguments, those are already in memory (null)
+            ExpressionNode[] arguments = new ExpressionNode[nArguments];
+            for(int i = nArguments - 1; i >= 0 && !operandStack.isEmpty(); i--){
+                arguments[i] = pop();
+            }
+
+            return new InvokeNode(functionStart, arguments, frameSize + depth);
+        }
+
+        // the same as in the interpreter: the number of instructions of the loop
+        private int backwardJumpCost(int pc, int destination){
+            return destination <= pc ? pc - destination + 1 : 0;
+        }
+
+        private TailCallNode tailCall(int functionStart, int nArguments){
+
+            int depth = operandStack.size();
+
+            ExpressionNode[] arguments = new ExpressionNode[nArguments];
+            for(int i = nArguments - 1; i >= 0; i--){
+                arguments[i] = pop();
+            }
+
+            return new TailCallNode(functionStart, arguments, frameSize + depth);
+        }
+
+        private boolean isOldCallSequence(int pc){
+            return pc + 3 < end
+                    && vm.opcodes[pc + 1] == Instr.LOADC
+                    && vm.opcodes[pc + 2] == Instr.CALL
+                    && vm.opcodes[pc + 3] == Instr.SLIDE
+                    && !operandStack.isEmpty() && operandStack.get(operandStack.size() - 1) instanceof ConstantNode;
+        }
+
+        // values left behind on Return and Halt are thrown away with the frame, only their side effects count
+        private void flushStack(){
+            for(ExpressionNode node : operandStack){
+                statements.add(new ExpressionStatementNode(node));
+            }
+            operandStack.clear();
+        }
+
+        private void push(ExpressionNode node){
+            operandStack.add(node);
+        }
+
+        private ExpressionNode pop(){
+            if(operandStack.isEmpty()){
+                throw new RuntimeException(String.format("Node engine: function at %d pops from an empty stack.", start));
+            }
+            return operandStack.remove(operandStack.size() - 1);
+        }
+
+        // statements run in order, so nothing may be waiting on the stack that would be evaluated later
+        private void addStatement(StatementNode statement){
+            statements.add(statement);
+            checkEmptyStack(-1);
+        }
+
+        private void checkEmptyStack(int pc){
+            if(!operandStack.isEmpty()){
+                throw new RuntimeException(String.format("Node engine: values left on the stack in function at %d (instruction %d).", start, pc));
+            }
+        }
+
+        private void checkInFunction(int destination){
+            if(destination < start || destination >= end){
+                throw new RuntimeException(String.format("Node engine: jump from function at %d to %d leaves the function.", start, destination));
+            }
+        }
+
+        private RuntimeException unsupported(int pc){
+            return new RuntimeException(String.format("Node engine doesn't support '%s' at %d.", vm.image.describe(pc), pc));
+        }
+    }
+}
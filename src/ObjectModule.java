@@ -0,0 +1,204 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+// one .c file of a program compiled on its own (a .cmo file), the Linker puts the modules of a program together:
+// the code initializing the global variables of the file (initLength instructions), then its functions, with jump labels of its own,
+// the functions it defines (exports) and calls without defining them (imports),
+// and the instructions that load the address of a global variable (relative to the first global variable of the file, moved by the linker)
+// global variables are private to their file, functions are shared by all files
+//
+// .cmo format: header lines, "code", then the code as a .cma listing
+//   module <name of the .c file>
+//   source <hash of the compiler version and the source, see CompileCache.hash>
+//   globals <cells>
+//   init <instructions>
+//   export <function>, import <function>, global <pc> (one line each)
+public class ObjectModule {
+
+    static final String CODE_SECTION = "code";
+
+    String name;
+    String sourceHash;
+
+    // unlinked and without superinstructions, they would hide the global addresses
+    Code code;
+    int initLength;
+
+    int globalCells;
+    List<Integer> globalAddresses;
+
+    Set<String> exports = new TreeSet<>();
+    Set<String> imports = new TreeSet<>();
+
+    public ObjectModule(Code code, int initLength, int globalCells, List<Integer> globalAddresses){
+        this.code = code;
+        this.initLength = initLength;
+        this.globalCells = globalCells;
+        this.globalAddresses = globalAddresses;
+
+        exports.addAll(code.functionNamesToCodeStart.keySet());
+
+        for(Instr instr : code.instructions){
+            if(instr instanceof Instr.Invoke && !exports.contains(((Instr.Invoke) instr).functionName)){
+                imports.add(((Instr.Invoke) instr).functionName);
+            }
+        }
+    }
+
+    // name is only used in messages (usually the file name)
+    public static ObjectModule compile(String name, String source){
+
+        List<Stmt.VariableDeclaration> globals = new ArrayList<>();
+        List<Stmt.FunctionDeclaration> functions = new ArrayList<>();
+
+        // like Parser.parse, but the file doesn't need a main function
+        for(Stmt stmt : new Parser(new Lexer(source).getTokens()).parseDeclarations()){
+            if(stmt instanceof Stmt.VariableDeclaration){
+                globals.add((Stmt.VariableDeclaration) stmt);
+            }
+            else if(stmt instanceof Stmt.FunctionDeclaration){
+                functions.add((Stmt.FunctionDeclaration) stmt);
+            }
+            else{
+                throw new RuntimeException(String.format("%s: Top level statements can only be variable or function declarations", name));
+            }
+        }
+
+        ObjectModule module = new CodeGenerator().generateModule(globals, functions);
+        module.name = name;
+        module.sourceHash = hashOf(source);
+
+        return module;
+    }
+
+    // identifies the source and the compiler that compiled it, an object module with the same hash doesn't need to be compiled again
+    static String hashOf(String source){
+        return CompileCache.hash(CompileCache.COMPILER_VERSION, source);
+    }
+
+    // written under a temporary name and then moved, a module that was cut off can't look up to date
+    public void write(Path path){
+
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+
+            writer.write(String.format("module %s\n", name));
+            writer.write(String.format("source %s\n", sourceHash));
+            writer.write(String.format("globals %d\n", globalCells));
+            writer.write(String.format("init %d\n", initLength));
+
+            for(String function : exports){
+                writer.write(String.format("export %s\n", function));
+            }
+            for(String function : imports){
+                writer.write(String.format("import %s\n", function));
+            }
+            for(int pc : globalAddresses){
+                writer.write(String.format("global %d\n", pc));
+            }
+
+            writer.write(CODE_SECTION + "\n");
+            code.writeListing(writer);
+
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write the object module " + path, e);
+        }
+
+        try {
+            Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write the object module " + path, e);
+        }
+    }
+
+    public static ObjectModule read(Path path){
+
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(path);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read the object module " + path, e);
+        }
+
+        String name = null;
+        String sourceHash = null;
+        int globalCells = 0;
+        int initLength = 0;
+        List<Integer> globalAddresses = new ArrayList<>();
+
+        // the header is ASCII, the listing behind it starts after the code line
+        int lineStart = 0;
+        int codeStart = -1;
+
+        while(lineStart < bytes.length){
+
+            int lineEnd = lineStart;
+            while(lineEnd < bytes.length && bytes[lineEnd] != '\n'){
+                lineEnd++;
+            }
+
+            String line = new String(bytes, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8).strip();
+            lineStart = lineEnd + 1;
+
+            if(line.equals(CODE_SECTION)){
+                codeStart = Math.min(lineStart, bytes.length);
+                break;
+            }
+
+            String[] parts = line.split(" ");
+
+            try {
+                switch(parts[0]){
+                    case "module" -> name = line.substring("module ".length());
+                    case "source" -> sourceHash = parts[1];
+                    case "globals" -> {
+                        // modules of older compilers also had the number of declarations here
+                        if(parts.length != 2){
+                            throw new RuntimeException("globals takes the number of cells only");
+                        }
+                        globalCells = Integer.parseInt(parts[1]);
+                    }
+                    case "init" -> initLength = Integer.parseInt(parts[1]);
+                    case "global" -> globalAddresses.add(Integer.parseInt(parts[1]));
+                    // exports and imports follow from the code
+                    case "export", "import" -> {}
+                    default -> throw new RuntimeException("unknown entry");
+                }
+            } catch (RuntimeException e) {
+                throw new RuntimeException(String.format("%s is not an object module, can't read the header line '%s'.", path, line), e);
+            }
+        }
+
+        if(codeStart == -1){
+            throw new RuntimeException(String.format("%s is not an object module, it has no code section.", path));
+        }
+
+        Code code = new Code();
+        ListingLoader.load(ByteBuffer.wrap(bytes, codeStart, bytes.length - codeStart).slice(), code);
+
+        if(initLength > code.instructions.size()){
+            throw new RuntimeException(String.format("%s is cut off, it has %d instructions but %d for the global variables alone.",
+                    path, code.instructions.size(), initLength));
+        }
+
+        ObjectModule module = new ObjectModule(code, initLength, globalCells, globalAddresses);
+        module.name = name != null ? name : path.toString();
+        module.sourceHash = sourceHash;
+
+        return module;
+    }
+
+    public String toString(){
+        return String.format("%s: %d instructions, exports %s, imports %s", name, code.instructions.size(), exports, imports);
+    }
+}
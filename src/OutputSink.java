@@ -0,0 +1,225 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+// where Print and Halt of the VM write to
+// lines are put together in a byte buffer (integers without going through String.format)
+// and only handed on when the buffer is full or the VM flushes at the end of a run
+public abstract class OutputSink {
+
+    static final byte[] PREFIX = "VM: ".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] EXIT_MESSAGE = "exited with code ".getBytes(StandardCharsets.US_ASCII);
+
+    static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    // minus sign and 10 digits
+    static final int MAX_INT_LENGTH = 11;
+
+    // "VM: " in front of every line
+    boolean prefixed = true;
+
+    byte[] buffer;
+    int position;
+
+    protected OutputSink(int bufferSize){
+        buffer = new byte[bufferSize];
+    }
+
+    // hands on the first length bytes
+    protected abstract void write(byte[] bytes, int length);
+
+    // called after the buffer was written out by flush()
+    protected void flushTarget(){
+    }
+
+    public void printInt(int value){
+        startLine(MAX_INT_LENGTH);
+        appendInt(value);
+        endLine();
+    }
+
+    public void printString(String value){
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+        startLine(bytes.length);
+        append(bytes);
+        endLine();
+    }
+
+    // the return value of main when the program halts
+    public void exit(int code){
+        startLine(EXIT_MESSAGE.length + MAX_INT_LENGTH);
+        append(EXIT_MESSAGE);
+        appendInt(code);
+        endLine();
+    }
+
+    public void flush(){
+        writeBuffer();
+        flushTarget();
+    }
+
+    // a line is never split between two writes, so lines from several VMs on one stream stay whole
+    private void startLine(int maxContentLength){
+        ensureSpace(PREFIX.length + maxContentLength + 1);
+
+        if(prefixed){
+            append(PREFIX);
+        }
+    }
+
+    private void endLine(){
+        ensureSpace(1);
+        buffer[position++] = '\n';
+    }
+
+    private void append(byte[] bytes){
+        ensureSpace(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    // digits are written from the back, then turned around
+    private void appendInt(int value){
+
+        ensureSpace(MAX_INT_LENGTH);
+
+        // long so that -Integer.MIN_VALUE fits
+        long rest = value;
+
+        if(rest < 0){
+            buffer[position++] = '-';
+            rest = -rest;
+        }
+
+        int first = position;
+
+        do {
+            buffer[position++] = (byte) ('0' + rest % 10);
+            rest /= 10;
+        } while(rest != 0);
+
+        for(int i = first, j = position - 1; i < j; i++, j--){
+            byte digit = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = digit;
+        }
+    }
+
+    private void ensureSpace(int n){
+
+        if(position + n <= buffer.length){
+            return;
+        }
+
+        writeBuffer();
+
+        // a single line that is longer than the whole buffer
+        if(n > buffer.length){
+            buffer = new byte[n];
+        }
+    }
+
+    private void writeBuffer(){
+        if(position > 0){
+            write(buffer, position);
+            position = 0;
+        }
+    }
+
+    // e.g. System.out (the default of the VM) or a file
+    static class StreamSink extends OutputSink {
+
+        OutputStream out;
+
+        public StreamSink(OutputStream out){
+            this(out, DEFAULT_BUFFER_SIZE);
+        }
+
+        public StreamSink(OutputStream out, int bufferSize){
+            super(bufferSize);
+            this.out = out;
+        }
+
+        @Override
+        protected void write(byte[] bytes, int length){
+            try {
+                out.write(bytes, 0, length);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not write the output of the VM.", e);
+            }
+        }
+
+        @Override
+        protected void flushTarget(){
+            try {
+                out.flush();
+            } catch (IOException e) {
+                throw new RuntimeException("Could not write the output of the VM.", e);
+            }
+        }
+    }
+
+    // writes at the current position of the channel, the caller opens and closes it
+    static class ChannelSink extends OutputSink {
+
+        FileChannel channel;
+
+        public ChannelSink(FileChannel channel){
+            this(channel, DEFAULT_BUFFER_SIZE);
+        }
+
+        public ChannelSink(FileChannel channel, int bufferSize){
+            super(bufferSize);
+            this.channel = channel;
+        }
+
+        @Override
+        protected void write(byte[] bytes, int length){
+            ByteBuffer byteBuffer = ByteBuffer.wrap(bytes, 0, length);
+
+            try {
+                while(byteBuffer.hasRemaining()){
+                    channel.write(byteBuffer);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Could not write the output of the VM.", e);
+            }
+        }
+    }
+
+    // keeps the output in memory, e.g. to compare it in tests or when the VM is embedded
+    static class MemorySink extends OutputSink {
+
+        ByteArrayOutputStream collected = new ByteArrayOutputStream();
+
+        public MemorySink(){
+            super(DEFAULT_BUFFER_SIZE);
+        }
+
+        @Override
+        protected void write(byte[] bytes, int length){
+            collected.write(bytes, 0, length);
+        }
+
+        public String text(){
+            flush();
+            return collected.toString(StandardCharsets.UTF_8);
+        }
+
+        public List<String> lines(){
+            String text = text();
+            return text.isEmpty() ? List.of() : Arrays.asList(text.split("\n"));
+        }
+
+        public void clear(){
+            flush();
+            collected.reset();
+        }
+    }
+}
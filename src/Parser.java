@@ -97,6 +97,11 @@ public class Parser {
         return new Program(variableDeclarations, functionDeclarations);
     }
 
+    // the top level declarations of a part of a program (e.g. a single function, see CompileCache), main doesn't have to be there
+    public List<Stmt> parseDeclarations(){
+        return program();
+    }
+
     private List<Stmt> program(){
 
         List<Stmt> declarations = new ArrayList<>();
@@ -368,6 +373,12 @@ public class Parser {
         else if(match(TokenType.IDENTIFIER)){
             return new Expr.VariableExpr(previous().lexeme);
         }
+        else if(match(TokenType.MALLOC)){
+            consume(TokenType.LEFT_PAREN, "( needed after malloc");
+            Expr size = expression();
+            consume(TokenType.RIGHT_PAREN, "Closing ) needed");
+            return new Expr.MallocExpr(size);
+        }
         else {
             // must be a grouping
             consume(TokenType.LEFT_PAREN,"Grouping expr must start with (");
@@ -436,6 +447,12 @@ public class Parser {
         if(match(TokenType.PRINT)){
             return printStatement();
         }
+        else if(match(TokenType.FREE)){
+            return freeStatement();
+        }
+        else if(match(TokenType.SNAPSHOT)){
+            return snapshotStatement();
+        }
         else if(match(TokenType.IF)){
             return ifStatement();
         }
@@ -459,6 +476,21 @@ public class Parser {
         return new Stmt.PrintStatement(expr);
     }
 
+    private Stmt freeStatement(){
+        consume(TokenType.LEFT_PAREN, "( needed after free");
+        Expr expr = expression();
+        consume(TokenType.RIGHT_PAREN, "Closing ) needed");
+        consume(TokenType.SEMICOLON, "missing ;");
+        return new Stmt.FreeStatement(expr);
+    }
+
+    private Stmt snapshotStatement(){
+        consume(TokenType.LEFT_PAREN, "( needed after snapshot");
+        consume(TokenType.RIGHT_PAREN, "Closing ) needed");
+        consume(TokenType.SEMICOLON, "missing ;");
+        return new Stmt.SnapshotStatement();
+    }
+
     private Stmt expressionStatement(){
         Expr expr = expression();
         consume(TokenType.SEMICOLON, "Statement must end with ;");
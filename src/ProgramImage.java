@@ -0,0 +1,391 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// the decoded code of a program, ready to run
+// nothing is written after the constructor, so one image can be run by many VMs on many threads at once
+// (the Code it was made from can be changed or thrown away afterward)
+// images can be saved in the binary .cmb format (write) and mapped back in without parsing (read)
+public final class ProgramImage {
+
+    static final int MAGIC = 0x434D4246; // "CMBF"
+    static final int VERSION = 1;
+
+    // magic, version, number of instructions, constants, functions and the fingerprint
+    static final int HEADER_SIZE = 5 * Integer.BYTES + Long.BYTES;
+
+    // the instructions as objects, only for debug output and error messages (all null if read from a .cmb file, see describe)
+    final Instr[] codeStore;
+
+    final Map<String, Integer> functionTable;
+
+    // decoded code store: one opcode and one operand per instruction
+    // (Invoke needs a second one for the number of arguments to slide)
+    final int[] opcodes;
+    final int[] operands;
+    final int[] secondOperands;
+
+    // strings (function names, print literals) live here, LoadC pushes their index instead
+    final String[] constantPool;
+
+    // index of the EXIT instruction behind the code
+    final int exitAddress;
+
+    // identifies the decoded program, e.g. to check that a saved VmSnapshot belongs to it
+    final long fingerprint;
+
+    public ProgramImage(Code code){
+
+        functionTable = Collections.unmodifiableMap(new HashMap<>(code.functionNamesToCodeStart));
+
+        Instr[] instructionsArray = code.instructions.toArray(new Instr[0]);
+
+        // one more for the EXIT instruction
+        codeStore = Arrays.copyOf(instructionsArray, instructionsArray.length + 1);
+
+        opcodes = new int[instructionsArray.length + 1];
+        operands = new int[instructionsArray.length + 1];
+        secondOperands = new int[instructionsArray.length + 1];
+
+        constantPool = decode(instructionsArray);
+
+        exitAddress = instructionsArray.length;
+        opcodes[exitAddress] = Instr.EXIT;
+
+        fingerprint = computeFingerprint();
+    }
+
+    private ProgramImage(Map<String, Integer> functionTable, int[] opcodes, int[] operands, int[] secondOperands, String[] constantPool){
+
+        this.functionTable = Collections.unmodifiableMap(functionTable);
+        this.opcodes = opcodes;
+        this.operands = operands;
+        this.secondOperands = secondOperands;
+        this.constantPool = constantPool;
+
+        codeStore = new Instr[opcodes.length];
+        exitAddress = opcodes.length - 1;
+        opcodes[exitAddress] = Instr.EXIT;
+
+        fingerprint = computeFingerprint();
+    }
+
+    // a .cmb file, anything else is read as a .cma listing
+    public static ProgramImage load(String fileName){
+        return fileName.endsWith(".cmb") ? read(Path.of(fileName)) : new ProgramImage(new Code(fileName));
+    }
+
+    // header, constant pool (the strings, then the function names), starts of the functions,
+    // then the opcodes, operands and second operands of all instructions as three blocks of ints
+    // (little-endian, jumps and calls already point to their destination)
+    public void write(Path path){
+
+        List<byte[]> pool = new ArrayList<>();
+        int poolSize = 0;
+
+        List<String> functionNames = new ArrayList<>(functionTable.keySet());
+
+        for(String entry : constantPool){
+            pool.add(entry.getBytes(StandardCharsets.UTF_8));
+        }
+        for(String functionName : functionNames){
+            pool.add(functionName.getBytes(StandardCharsets.UTF_8));
+        }
+        for(byte[] entry : pool){
+            poolSize += Integer.BYTES + entry.length;
+        }
+
+        int nInstructions = exitAddress;
+        int codeOffset = align(HEADER_SIZE + poolSize + functionNames.size() * Integer.BYTES);
+
+        ByteBuffer buffer = ByteBuffer.allocate(codeOffset + 3 * nInstructions * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(nInstructions);
+        buffer.putInt(constantPool.length);
+        buffer.putInt(functionNames.size());
+        buffer.putLong(fingerprint);
+
+        for(byte[] entry : pool){
+            buffer.putInt(entry.length);
+            buffer.put(entry);
+        }
+        for(String functionName : functionNames){
+            buffer.putInt(functionTable.get(functionName));
+        }
+
+        buffer.position(codeOffset);
+        buffer.asIntBuffer().put(opcodes, 0, nInstructions).put(operands, 0, nInstructions).put(secondOperands, 0, nInstructions);
+        buffer.rewind();
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while(buffer.hasRemaining()){
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write the program to " + path, e);
+        }
+    }
+
+    // maps the file into memory, the instructions are copied into the arrays in bulk without decoding anything
+    public static ProgramImage read(Path path){
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+
+            if(buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC){
+                throw new RuntimeException(path + " is not a binary program (.cmb).");
+            }
+            int version = buffer.getInt();
+            if(version != VERSION){
+                throw new RuntimeException(String.format("Binary program version %d is not supported.", version));
+            }
+
+            int nInstructions = buffer.getInt();
+            int nConstants = buffer.getInt();
+            int nFunctions = buffer.getInt();
+            long fingerprint = buffer.getLong();
+
+            String[] constantPool = new String[nConstants];
+            for(int i = 0; i < nConstants; i++){
+                constantPool[i] = readString(buffer);
+            }
+
+            String[] functionNames = new String[nFunctions];
+            for(int i = 0; i < nFunctions; i++){
+                functionNames[i] = readString(buffer);
+            }
+
+            Map<String, Integer> functionTable = new HashMap<>();
+            for(String functionName : functionNames){
+                functionTable.put(functionName, buffer.getInt());
+            }
+
+            // one more for the EXIT instruction
+            int[] opcodes = new int[nInstructions + 1];
+            int[] operands = new int[nInstructions + 1];
+            int[] secondOperands = new int[nInstructions + 1];
+
+            buffer.position(align(buffer.position()));
+            buffer.asIntBuffer().get(opcodes, 0, nInstructions).get(operands, 0, nInstructions).get(secondOperands, 0, nInstructions);
+
+            ProgramImage image = new ProgramImage(functionTable, opcodes, operands, secondOperands, constantPool);
+
+            if(image.fingerprint != fingerprint){
+                throw new RuntimeException(String.format("The binary program %s is damaged (fingerprint doesn't match).", path));
+            }
+
+            return image;
+
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read the program " + path, e);
+        } catch (java.nio.BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new RuntimeException(String.format("The binary program %s is truncated.", path));
+        }
+    }
+
+    private static String readString(ByteBuffer buffer){
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // the instructions start at a multiple of 4 bytes
+    private static int align(int position){
+        return (position + Integer.BYTES - 1) & -Integer.BYTES;
+    }
+
+    // the instruction at pc for error messages and debug output
+    // without an instruction object (read from a .cmb file) it is put together from the decoded arrays
+    String describe(int pc){
+
+        if(codeStore[pc] != null){
+            return codeStore[pc].toString();
+        }
+
+        if(opcodes[pc] < 0 || opcodes[pc] >= Instr.N_OPCODES){
+            return "opcode " + opcodes[pc];
+        }
+
+        String mnemonic = Instr.MNEMONICS[opcodes[pc]];
+
+        switch(opcodes[pc]){
+            case Instr.INVOKE:
+            case Instr.TAIL_INVOKE:
+            case Instr.MEMO_INVOKE:
+                return String.format("%s '%s' %d", mnemonic, functionNameAt(operands[pc]), secondOperands[pc]);
+            case Instr.ENTER:
+            case Instr.SLIDE:
+            case Instr.LOADRC:
+            case Instr.LOADC:
+            case Instr.ALLOC:
+            case Instr.LOADR:
+            case Instr.STORER_POP:
+            case Instr.ADDC:
+            case Instr.JUMPZ:
+            case Instr.JUMP:
+            case Instr.LESS_JUMPZ:
+                return mnemonic + " " + operands[pc];
+            default:
+                return mnemonic;
+        }
+    }
+
+    private String functionNameAt(int start){
+        for(Map.Entry<String, Integer> function : functionTable.entrySet()){
+            if(function.getValue() == start){
+                return function.getKey();
+            }
+        }
+        return String.valueOf(start);
+    }
+
+    private long computeFingerprint(){
+
+        long hash = 1125899906842597L;
+
+        for(int i = 0; i < opcodes.length; i++){
+            hash = 31 * hash + opcodes[i];
+            hash = 31 * hash + operands[i];
+            hash = 31 * hash + secondOperands[i];
+        }
+        for(String constant : constantPool){
+            hash = 31 * hash + constant.hashCode();
+        }
+
+        return hash;
+    }
+
+    // translates the instruction objects into flat arrays so the dispatch loop only switches over ints
+    // returns the constant pool
+    private String[] decode(Instr[] instructionsArray){
+
+        List<String> constants = new ArrayList<>();
+        Map<String, Integer> constantToIndex = new HashMap<>();
+
+        for(int i = 0; i < instructionsArray.length; i++){
+            Instr instruction = instructionsArray[i];
+
+            opcodes[i] = instruction.opcode();
+
+            switch(opcodes[i]){
+                case Instr.SLIDE:
+                    operands[i] = ((Instr.Slide) instruction).m;
+                    break;
+                case Instr.LOADRC:
+                    operands[i] = ((Instr.LoadRC) instruction).j;
+                    break;
+                case Instr.LOADC:
+                    Object q = ((Instr.LoadC) instruction).q;
+
+                    if(q instanceof Integer){
+                        operands[i] = (Integer) q;
+                    }
+                    else if(q instanceof String && isFollowedByCall(instructionsArray, i)){
+                        // call-link: push the start of the function directly so Call doesn't need to look it up
+                        operands[i] = resolveFunction((String) q);
+                    }
+                    else if(q instanceof String){
+                        // strings can't live on the int stack, so only their index into the constant pool is pushed
+                        checkStringIsConsumed(instructionsArray, i);
+
+                        String constant = (String) q;
+                        if(!constantToIndex.containsKey(constant)){
+                            constantToIndex.put(constant, constants.size());
+                            constants.add(constant);
+                        }
+                        operands[i] = constantToIndex.get(constant);
+                    }
+                    else {
+                        throw new RuntimeException("LoadC doesn't support constant " + q);
+                    }
+                    break;
+                case Instr.PRINT:
+                    // the value to print is a string if it was just loaded as one
+                    if(i > 0 && isStringConstant(instructionsArray[i - 1])){
+                        opcodes[i] = Instr.PRINT_STRING;
+                    }
+                    break;
+                case Instr.ALLOC:
+                    operands[i] = ((Instr.Alloc) instruction).k;
+                    break;
+                case Instr.ENTER:
+                    operands[i] = ((Instr.Enter) instruction).q;
+                    break;
+                case Instr.LOADR:
+                    operands[i] = ((Instr.LoadR) instruction).j;
+                    break;
+                case Instr.STORER_POP:
+                    operands[i] = ((Instr.StoreRPop) instruction).j;
+                    break;
+                case Instr.ADDC:
+                    operands[i] = ((Instr.AddC) instruction).q;
+                    break;
+                case Instr.LESS_JUMPZ:
+                    operands[i] = checkLinked(((Instr.LessJumpZ) instruction).target, instruction);
+                    break;
+                case Instr.INVOKE:
+                case Instr.TAIL_INVOKE:
+                case Instr.MEMO_INVOKE:
+                    operands[i] = checkLinked(((Instr.Invoke) instruction).target, instruction);
+                    secondOperands[i] = ((Instr.Invoke) instruction).m;
+                    break;
+                case Instr.JUMPZ:
+                    operands[i] = checkLinked(((Instr.JumpZ) instruction).target, instruction);
+                    break;
+                case Instr.JUMP:
+                    operands[i] = checkLinked(((Instr.Jump) instruction).target, instruction);
+                    break;
+            }
+        }
+
+        return constants.toArray(new String[0]);
+    }
+
+    private int checkLinked(int target, Instr instruction){
+
+        if(target < 0){
+            throw new RuntimeException(String.format("'%s' has no destination, the code needs to be linked first.", instruction));
+        }
+
+        return target;
+    }
+
+    private int resolveFunction(String functionName){
+
+        if(!functionTable.containsKey(functionName)){
+            throw new RuntimeException(String.format("Function '%s' is not defined.", functionName));
+        }
+
+        return functionTable.get(functionName);
+    }
+
+    private boolean isFollowedByCall(Instr[] instructionsArray, int i){
+        return i + 1 < instructionsArray.length && instructionsArray[i + 1] instanceof Instr.Call;
+    }
+
+    private boolean isStringConstant(Instr instruction){
+        return instruction instanceof Instr.LoadC && ((Instr.LoadC) instruction).q instanceof String;
+    }
+
+    private void checkStringIsConsumed(Instr[] instructionsArray, int i){
+
+        Instr next = i + 1 < instructionsArray.length ? instructionsArray[i + 1] : null;
+
+        if(!(next instanceof Instr.Print)){
+            throw new RuntimeException(String.format("String constant in '%s' must be printed or called right away.", instructionsArray[i]));
+        }
+    }
+}
@@ -0,0 +1,209 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+// marks the functions whose result only depends on their arguments, calls of them can be memoized (see MemoCache)
+// pure: no pointer parameters or locals, no access to globals, no memory through pointers (&, *, malloc, free),
+// no print or snapshot, and only calls of pure functions
+public class PurityAnalysis implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    // of the function that is looked at
+    Set<String> locals;
+    Set<String> calledFunctions;
+    boolean isPure;
+
+    // sets isPure of every function declaration of the program
+    public void analyze(Program program){
+
+        Map<String, Set<String>> calls = new HashMap<>();
+        Map<String, Stmt.FunctionDeclaration> pureFunctions = new HashMap<>();
+
+        for(Stmt.FunctionDeclaration function : program.functionDeclarations){
+            function.accept(this);
+
+            calls.put(function.functionName, calledFunctions);
+            if(isPure){
+                pureFunctions.put(function.functionName, function);
+            }
+        }
+
+        // a function that calls an impure one is impure, until nothing changes anymore
+        boolean changed = true;
+        while(changed){
+            changed = pureFunctions.keySet().removeIf(name -> !pureFunctions.keySet().containsAll(calls.get(name)));
+        }
+
+        for(Stmt.FunctionDeclaration function : program.functionDeclarations){
+            function.isPure = pureFunctions.containsKey(function.functionName);
+        }
+    }
+
+    @Override
+    public Void visitFunctionDeclaration(Stmt.FunctionDeclaration functionDeclaration) {
+
+        locals = new HashSet<>();
+        calledFunctions = new HashSet<>();
+        isPure = true;
+
+        for(Stmt.VariableDeclaration parameter : functionDeclaration.parameters){
+            parameter.accept(this);
+        }
+
+        functionDeclaration.body.accept(this);
+
+        return null;
+    }
+
+    // like in the code generator, a variable is known from its declaration to the end of the function
+    @Override
+    public Void visitVariableDeclaration(Stmt.VariableDeclaration variableDeclaration) {
+
+        if(variableDeclaration.type.endsWith("*")){
+            isPure = false;
+        }
+
+        if(variableDeclaration.initializer != null){
+            variableDeclaration.initializer.accept(this, GenerationMode.R);
+        }
+
+        locals.add(variableDeclaration.variableName);
+
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.VariableExpr variableExpr, GenerationMode mode) {
+
+        if(!locals.contains(variableExpr.varName)){
+            isPure = false;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitArrayAccessExpr(Expr.ArrayAccessExpr arrayAccessExpr, GenerationMode mode) {
+        // only local arrays, pointers are excluded already
+        arrayAccessExpr.arrayExpr.accept(this, GenerationMode.L);
+        arrayAccessExpr.indexExpr.accept(this, GenerationMode.R);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.CallExpr expr, GenerationMode mode) {
+
+        calledFunctions.add(expr.functionName);
+
+        for(Expr parameterExpr : expr.parameterExpressions){
+            parameterExpr.accept(this, GenerationMode.R);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitAddressExpr(Expr.AddressExpr expr, GenerationMode mode) {
+        isPure = false;
+        return null;
+    }
+
+    @Override
+    public Void visitDeRefExpr(Expr.DeRefExpr expr, GenerationMode mode) {
+        isPure = false;
+        return null;
+    }
+
+    @Override
+    public Void visitMallocExpr(Expr.MallocExpr expr, GenerationMode mode) {
+        isPure = false;
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStatement(Stmt.PrintStatement printStatement) {
+        isPure = false;
+        return null;
+    }
+
+    @Override
+    public Void visitFreeStatement(Stmt.FreeStatement freeStatement) {
+        isPure = false;
+        return null;
+    }
+
+    @Override
+    public Void visitSnapshotStatement(Stmt.SnapshotStatement snapshotStatement) {
+        isPure = false;
+        return null;
+    }
+
+    @Override
+    public Void visitLiteral(Expr.Literal literal, GenerationMode mode) {
+        return null;
+    }
+
+    @Override
+    public Void visitBinary(Expr.BinOp binOp, GenerationMode mode) {
+        binOp.left.accept(this, GenerationMode.R);
+        binOp.right.accept(this, GenerationMode.R);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.AssignExpr assignExpr, GenerationMode mode) {
+        assignExpr.target.accept(this, GenerationMode.L);
+        assignExpr.value.accept(this, GenerationMode.R);
+        return null;
+    }
+
+    @Override
+    public Void visitNegatedExpr(Expr.NegatedExpr expr, GenerationMode mode) {
+        expr.expr.accept(this, GenerationMode.R);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryMinusExpr(Expr.UnaryMinusExpr expr, GenerationMode mode) {
+        expr.expr.accept(this, GenerationMode.R);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStatement(Stmt.ExpressionStatement e) {
+        e.expr.accept(this, GenerationMode.R);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStatement(Stmt.IfStatement ifStatement) {
+        ifStatement.condition.accept(this, GenerationMode.R);
+        ifStatement.ifBranch.accept(this);
+
+        if(ifStatement.elseBranch != null){
+            ifStatement.elseBranch.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStatement(Stmt.BlockStatement blockStatement) {
+        for(Stmt statement : blockStatement.statements){
+            statement.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStatement(Stmt.WhileStatement whileStatement) {
+        whileStatement.condition.accept(this, GenerationMode.R);
+        whileStatement.body.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStatement(Stmt.ReturnStatement returnStatement) {
+        if(returnStatement.expr != null){
+            returnStatement.expr.accept(this, GenerationMode.R);
+        }
+        return null;
+    }
+}
@@ -2,12 +2,10 @@ public class RunCode {
 
     public static void main(String[] args) {
 
-        String fileName = "primes.cma";
-
-        Code code = new Code(fileName);
+        String fileName = args.length > 0 ? args[0] : "primes.cma";
 
         VirtualMachine vm = new VirtualMachine();
 
-        vm.execute(code);
+        vm.execute(ProgramImage.load(fileName));
     }
 }
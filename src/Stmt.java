@@ -80,6 +80,9 @@ public abstract class Stmt {
         List<VariableDeclaration> parameters;
         BlockStatement body;
 
+        // the result only depends on the arguments (set by PurityAnalysis)
+        boolean isPure;
+
         public FunctionDeclaration(String returnType, String functionName, List<VariableDeclaration> parameters, BlockStatement body){
             this.returnType = returnType;
             this.functionName = functionName;
@@ -151,6 +154,29 @@ public abstract class Stmt {
         }
     }
 
+    // free(p) gives a block from malloc back to the heap
+    static class FreeStatement extends Stmt{
+        Expr expr;
+
+        public FreeStatement(Expr expr){
+            this.expr = expr;
+        }
+
+        @Override
+        <T> T accept(Visitor<T> visitor) {
+            return visitor.visitFreeStatement(this);
+        }
+    }
+
+    // snapshot() lets the VM save its state at this point (see VmSnapshot)
+    static class SnapshotStatement extends Stmt{
+
+        @Override
+        <T> T accept(Visitor<T> visitor) {
+            return visitor.visitSnapshotStatement(this);
+        }
+    }
+
     static class ReturnStatement extends Stmt{
 
         Expr expr;
@@ -174,5 +200,7 @@ public abstract class Stmt {
         T visitVariableDeclaration(VariableDeclaration variableDeclaration);
         T visitFunctionDeclaration(FunctionDeclaration functionDeclaration);
         T visitReturnStatement(ReturnStatement returnStatement);
+        T visitFreeStatement(FreeStatement freeStatement);
+        T visitSnapshotStatement(SnapshotStatement snapshotStatement);
     }
 }
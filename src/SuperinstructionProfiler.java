@@ -0,0 +1,98 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// counts instruction n-grams over a corpus of .cma files to find candidates for superinstructions
+// usage: SuperinstructionProfiler [-n maxLength] [-top k] file1.cma file2.cma ...
+public class SuperinstructionProfiler {
+
+    int maxLength = 3;
+
+    Map<String, Integer> nGramCounts = new HashMap<>();
+
+    public static void main(String[] args) {
+
+        SuperinstructionProfiler profiler = new SuperinstructionProfiler();
+        int top = 20;
+
+        List<String> fileNames = new ArrayList<>();
+
+        for(int i = 0; i < args.length; i++){
+            if(args[i].equals("-n")){
+                profiler.maxLength = Integer.parseInt(args[++i]);
+            }
+            else if(args[i].equals("-top")){
+                top = Integer.parseInt(args[++i]);
+            }
+            else{
+                fileNames.add(args[i]);
+            }
+        }
+
+        for(String fileName : fileNames){
+            profiler.profile(new Code(fileName));
+        }
+
+        profiler.printMostFrequent(top);
+    }
+
+    public void profile(Code code){
+
+        // a sequence can only be fused if no jump lands in the middle of it
+        Set<Integer> jumpDestinations = new HashSet<>();
+        jumpDestinations.addAll(code.jumpTable.values());
+        jumpDestinations.addAll(code.functionNamesToCodeStart.values());
+
+        List<Instr> instructions = code.instructions;
+
+        for(int start = 0; start < instructions.size(); start++){
+
+            List<String> nGram = new ArrayList<>();
+
+            for(int i = start; i < instructions.size() && nGram.size() < maxLength; i++){
+
+                Instr instr = instructions.get(i);
+
+                if(!canBeFused(instr) || (i > start && jumpDestinations.contains(i))){
+                    break;
+                }
+
+                nGram.add(mnemonic(instr));
+
+                if(nGram.size() >= 2){
+                    nGramCounts.merge(String.join("; ", nGram), 1, Integer::sum);
+                }
+
+                // jumps can only end a superinstruction
+                if(instr instanceof Instr.Jump || instr instanceof Instr.JumpZ){
+                    break;
+                }
+            }
+        }
+    }
+
+    // calls and returns need to stay separate instructions because return addresses point right behind them
+    private boolean canBeFused(Instr instr){
+        return !(instr instanceof Instr.Call || instr instanceof Instr.Invoke || instr instanceof Instr.Mark
+                || instr instanceof Instr.Return || instr instanceof Instr.Halt || instr instanceof Instr.Enter);
+    }
+
+    // the operands don't matter, the superinstruction takes them over
+    private String mnemonic(Instr instr){
+        return instr.toString().split(" ")[0];
+    }
+
+    public void printMostFrequent(int top){
+
+        Collection<Map.Entry<String, Integer>> entries = new ArrayList<>(nGramCounts.entrySet());
+
+        entries.stream()
+                .sorted((e1, e2) -> e2.getValue() - e1.getValue())
+                .limit(top)
+                .forEach(e -> System.out.printf("%6d  %s\n", e.getValue(), e.getKey()));
+    }
+}
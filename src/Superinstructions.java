@@ -0,0 +1,116 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+// replaces frequent instruction sequences by a single superinstruction
+// the sequences were picked with the SuperinstructionProfiler over the example programs
+public class Superinstructions {
+
+    // instructions to match -> builds the superinstruction from the matched instructions
+    static List<Pair<List<Predicate<Instr>>, Function<List<Instr>, Instr>>> patterns = new ArrayList<>();
+
+    static {
+        // longer patterns first so they win over their prefixes
+        patterns.add(new Pair<>(
+                List.of(i -> i instanceof Instr.LoadRC, i -> i instanceof Instr.Store, i -> i instanceof Instr.Pop),
+                matched -> new Instr.StoreRPop(((Instr.LoadRC) matched.get(0)).j)
+        ));
+        patterns.add(new Pair<>(
+                List.of(i -> i instanceof Instr.LoadRC, i -> i instanceof Instr.Load),
+                matched -> new Instr.LoadR(((Instr.LoadRC) matched.get(0)).j)
+        ));
+        patterns.add(new Pair<>(
+                List.of(i -> i instanceof Instr.Store, i -> i instanceof Instr.Pop),
+                matched -> new Instr.StorePop()
+        ));
+        patterns.add(new Pair<>(
+                List.of(i -> i instanceof Instr.LoadC && ((Instr.LoadC) i).q instanceof Integer, i -> i instanceof Instr.Add),
+                matched -> new Instr.AddC((Integer) ((Instr.LoadC) matched.get(0)).q)
+        ));
+        patterns.add(new Pair<>(
+                List.of(i -> i instanceof Instr.Less, i -> i instanceof Instr.JumpZ),
+                matched -> new Instr.LessJumpZ(((Instr.JumpZ) matched.get(1)).jumpLabel)
+        ));
+    }
+
+    // rewrites the code in place, jump labels and function starts are moved to the new indices
+    // the code needs to be linked afterward
+    public static void fuse(Code code){
+
+        List<Instr> instructions = code.instructions;
+
+        // nothing may jump into the middle of a superinstruction
+        Set<Integer> jumpDestinations = new HashSet<>();
+        jumpDestinations.addAll(code.jumpTable.values());
+        jumpDestinations.addAll(code.functionNamesToCodeStart.values());
+
+        List<Instr> fused = new ArrayList<>();
+
+        // labels may point right behind the last instruction
+        int[] newIndices = new int[instructions.size() + 1];
+
+        int i = 0;
+        while(i < instructions.size()){
+
+            newIndices[i] = fused.size();
+
+            Pair<List<Predicate<Instr>>, Function<List<Instr>, Instr>> pattern = findPattern(instructions, i, jumpDestinations);
+
+            if(pattern != null){
+                int length = pattern.key().size();
+                fused.add(pattern.value().apply(instructions.subList(i, i + length)));
+                i += length;
+            }
+            else{
+                fused.add(instructions.get(i));
+                i++;
+            }
+        }
+        newIndices[instructions.size()] = fused.size();
+
+        moveDestinations(code.jumpTable, newIndices);
+        moveDestinations(code.functionNamesToCodeStart, newIndices);
+
+        code.instructions = fused;
+    }
+
+    private static Pair<List<Predicate<Instr>>, Function<List<Instr>, Instr>> findPattern(List<Instr> instructions, int start, Set<Integer> jumpDestinations){
+
+        for(Pair<List<Predicate<Instr>>, Function<List<Instr>, Instr>> pattern : patterns){
+            if(matches(pattern.key(), instructions, start, jumpDestinations)){
+                return pattern;
+            }
+        }
+        return null;
+    }
+
+    private static boolean matches(List<Predicate<Instr>> pattern, List<Instr> instructions, int start, Set<Integer> jumpDestinations){
+
+        if(start + pattern.size() > instructions.size()){
+            return false;
+        }
+
+        for(int k = 0; k < pattern.size(); k++){
+
+            if(!pattern.get(k).test(instructions.get(start + k))){
+                return false;
+            }
+
+            // only the first instruction may be a jump destination
+            if(k > 0 && jumpDestinations.contains(start + k)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static <K> void moveDestinations(Map<K, Integer> table, int[] newIndices){
+        for(K key : table.keySet()){
+            table.put(key, newIndices[table.get(key)]);
+        }
+    }
+}
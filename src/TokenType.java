@@ -18,6 +18,7 @@ public enum TokenType {
     DOUBLE_AMPERSAND, DOUBLE_PIPE, ELSE, FOR, IF,
     PRINT, RETURN, WHILE,
     INT,
+    MALLOC, FREE, SNAPSHOT,
 
     EOF
 }
@@ -0,0 +1,66 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+// prints a trace dumped by the ExecutionTracer next to the instructions of the program it was recorded with
+// usage: TraceDecoder trace.bin program.cma
+public class TraceDecoder {
+
+    public static void main(String[] args) {
+
+        if(args.length != 2){
+            System.out.println("usage: TraceDecoder trace.bin program.cma");
+            System.exit(1);
+        }
+
+        Code code = new Code(args[1]);
+
+        // the same decoding as in the VM, so the recorded opcodes can be checked against the listing
+        ProgramImage image = new ProgramImage(code);
+        String[] listing = code.toString().split("\n");
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0])))) {
+
+            if(in.readInt() != ExecutionTracer.MAGIC){
+                throw new RuntimeException(args[0] + " is not a trace of the VM.");
+            }
+            int version = in.readInt();
+            if(version != ExecutionTracer.VERSION){
+                throw new RuntimeException(String.format("Trace version %d is not supported.", version));
+            }
+
+            long count = in.readLong();
+            int stored = in.readInt();
+
+            System.out.printf("%d instructions executed, the last %d were recorded\n", count, stored);
+            System.out.printf("%10s  %5s  %-32s %6s %6s %11s\n", "#", "pc", "instruction", "sp", "fp", "top");
+
+            for(int i = 0; i < stored; i++){
+                int pc = in.readInt();
+                int opcode = in.readInt();
+                int stackPointer = in.readInt();
+                int framePointer = in.readInt();
+                int topOfStack = in.readInt();
+
+                System.out.printf("%10d  %5d  %-32s %6d %6d %11d\n",
+                        count - stored + i, pc, instructionAt(listing, image, pc, opcode), stackPointer, framePointer, topOfStack);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read the trace " + args[0], e);
+        }
+    }
+
+    private static String instructionAt(String[] listing, ProgramImage image, int pc, int opcode){
+
+        if(pc == image.exitAddress){
+            return "(exit)";
+        }
+
+        if(pc < 0 || pc >= listing.length || image.opcodes[pc] != opcode){
+            return String.format("(opcode %d, not in this program)", opcode);
+        }
+
+        return listing[pc];
+    }
+}
@@ -1,314 +1,735 @@
-import java.util.function.BiFunction;
-import java.util.function.Function;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.function.Consumer;
 
 public class VirtualMachine {
 
+    // can be changed between runs, the stack is allocated when the code is loaded
     int stackSize = 1000;
-    int instructionSize = 200;
 
-    Object[] stack;
-    Instr[] codeStore;
-    Map<Integer, Integer> jumpTable;
-    Map<String, Integer> functionTable;
+    // cells available to malloc, the heap is only allocated by the first malloc and cleared after every run
+    int heapSize = 1 << 20;
+    Heap heap;
+
+    // the stack is the only memory of the machine, so every cell is a plain int
+    int[] stack;
 
-    Instr instructionRegister;
+    // the program that runs, its arrays are shared with other VMs and never written (see ProgramImage)
+    ProgramImage image;
+    Map<String, Integer> functionTable;
+    int[] opcodes;
+    int[] operands;
+    int[] secondOperands;
+    String[] constantPool;
 
     int stackPointer;
 
-    // TODO: use the extreme pointer to detect stack overflows!
+    // highest cell the current frame may use (set by Enter)
     int extremePointer;
     int framePointer;
     int programCounter;
 
     boolean isRunning;
 
-    boolean debugPrintActivated = false;
+    // records the executed instructions when set (see ExecutionTracer)
+    ExecutionTracer tracer;
+
+    // counts the executed instructions per opcode, pc and function when set (see ExecutionProfiler)
+    ExecutionProfiler profiler;
+
+    // Print and Halt write here, flushed at the end of every run
+    OutputSink output = new OutputSink.StreamSink(System.out);
+
+    ExecutionEngine engine = ExecutionEngine.INTERPRETER;
+
+    // compile functions to JVM bytecode once they have been invoked jitThreshold times
+    boolean jitEnabled = false;
+    int jitThreshold = 1000;
+
+    JitCompiler jit;
+
+    int exitAddress;
+
+    // limits for a run of an untrusted program (0 = no limit), see ExecutionResult
+    // fuel is only used up on backward jumps (as many as the loop has instructions) and calls (1),
+    // the deadline is only looked at whenever another FUEL_SLICE of fuel is handed out
+    long fuelLimit = 0;
+    long timeLimitMillis = 0;
+
+    static final long FUEL_SLICE = 1 << 16;
+
+    // left until refuel() runs, can go below 0 by the last cost
+    long fuel;
+    // not handed out yet
+    long fuelReserve;
+    long fuelHandedOut;
+
+    long startTime;
+    // System.nanoTime() at which the run is stopped (0 = none)
+    long deadline;
+
+    // results of pure functions, MemoInvoke skips calls that are in there (null = every call is made)
+    MemoCache memoCache;
+
+    // keys of the MemoInvoke calls that are running, the innermost one is first
+    ArrayDeque<MemoCache.Key> pendingMemoCalls = new ArrayDeque<>();
+
+    // gets the state of the VM whenever the program executes snapshot() (null = snapshot() does nothing)
+    Consumer<VmSnapshot> snapshotListener;
+
+    // end the run right after a snapshot, e.g. to run the initialization of a program only once (see runToSnapshot)
+    boolean stopAtSnapshot;
+
+    // runs of the interpreter for functions called by compiled code (their JVM frames can't be saved in a snapshot)
+    int nestedRuns;
+
+    // stops the run from wherever a limit was reached (interpreter, node tree or compiled code) or the snapshot was taken
+    private static class RunStoppedException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        ExecutionResult.Status status;
+
+        RunStoppedException(ExecutionResult.Status status){
+            super(status.toString(), null, false, false);
+            this.status = status;
+        }
+    }
 
     public VirtualMachine(){
-        stack = new Object[stackSize];
-        codeStore = new Instr[instructionSize];
     }
 
-    private void init(Code code){
+    public VirtualMachine(int stackSize){
+        this.stackSize = stackSize;
+    }
+
+    private void init(ProgramImage image){
 
-        jumpTable = code.jumpTable;
-        functionTable = code.functionNamesToCodeStart;
+        boolean isSameProgram = image == this.image;
 
-        Instr[] instructionsArray = code.instructions.toArray(new Instr[0]);
+        this.image = image;
+        functionTable = image.functionTable;
+        opcodes = image.opcodes;
+        operands = image.operands;
+        secondOperands = image.secondOperands;
+        constantPool = image.constantPool;
+        exitAddress = image.exitAddress;
+
+        // a VM that runs the same program again keeps the functions it compiled
+        // while profiling everything is interpreted, compiled functions would not report to the profiler
+        if(!jitEnabled || profiler != null){
+            jit = null;
+        }
+        else if(jit == null || !isSameProgram){
+            jit = new JitCompiler(this, jitThreshold);
+        }
+
+        // the functions of another program have other starts
+        if(memoCache != null && !isSameProgram){
+            memoCache.clear();
+        }
+        pendingMemoCalls.clear();
+
+        // a reused VM gets a clean stack, it is only allocated again when the size changed
+        if(stack == null || stack.length != stackSize){
+            stack = new int[stackSize];
+        }
+        else{
+            Arrays.fill(stack, 0);
+        }
 
-        System.arraycopy(instructionsArray, 0, codeStore, 0, instructionsArray.length);
         stackPointer = -1;
         framePointer = -1;
         extremePointer = -1;
         programCounter = 0;
 
         isRunning = true;
+
+        startTime = System.nanoTime();
+        deadline = timeLimitMillis > 0 ? startTime + timeLimitMillis * 1_000_000 : 0;
+
+        fuel = 0;
+        fuelHandedOut = 0;
+        fuelReserve = fuelLimit > 0 ? fuelLimit : Long.MAX_VALUE;
+        handOutFuel();
+
+        if(profiler != null){
+            profiler.start(image);
+        }
     }
 
-    public void execute(Code code){
+    public ExecutionResult execute(Code code){
+        return execute(new ProgramImage(code));
+    }
 
-        init(code);
+    public ExecutionResult execute(ProgramImage image){
+        init(image);
+        return runToEnd(engine);
+    }
 
-        while(isRunning){
-            instructionRegister = codeStore[programCounter++];
+    // continues where the program was when the snapshot was taken
+    // always in the interpreter: the node engine can't pick up a run in the middle of a function
+    public ExecutionResult resume(VmSnapshot snapshot){
+        init(snapshot.image);
+        snapshot.restoreInto(this);
+        return runToEnd(ExecutionEngine.INTERPRETER);
+    }
 
-            execute(instructionRegister);
+    // runs the program until it executes snapshot() and returns the state there
+    public VmSnapshot runToSnapshot(ProgramImage image){
 
-            if(debugPrintActivated) {
-                System.out.println(this);
-            }
+        Consumer<VmSnapshot> previousListener = snapshotListener;
+        boolean previousStopAtSnapshot = stopAtSnapshot;
+
+        VmSnapshot[] taken = new VmSnapshot[1];
+        snapshotListener = snapshot -> taken[0] = snapshot;
+        stopAtSnapshot = true;
+
+        try {
+            execute(image);
+        } finally {
+            snapshotListener = previousListener;
+            stopAtSnapshot = previousStopAtSnapshot;
+        }
+
+        if(taken[0] == null){
+            throw new RuntimeException("The program ended without executing snapshot().");
         }
+
+        return taken[0];
     }
 
-    private void execute(Instr instruction){
-        if(instruction instanceof Instr.Halt){
-            isRunning = false;
+    private ExecutionResult runToEnd(ExecutionEngine engine){
 
-            // return value from main
-            System.out.printf("VM: exited with code %s\n", stack[0]);
-        }
-        else if(instruction instanceof Instr.JumpZ){
-            if((Integer)stack[stackPointer] == 0){
-                programCounter = jumpTable.get(((Instr.JumpZ) instruction).jumpLabel);
+        ExecutionResult.Status status = ExecutionResult.Status.HALTED;
 
+        try {
+            if(engine == ExecutionEngine.NODE_TREE){
+                new NodeInterpreter(this).run();
+            }
+            else{
+                run();
+            }
+        } catch (RunStoppedException e) {
+            status = e.status;
+        } catch (StackOverflowError e) {
+            dumpTraceAfterCrash();
+
+            // the node engine and compiled code call functions recursively on the JVM stack, which can run out first
+            throw new RuntimeException("Stack overflow: calls are nested too deeply for the JVM stack.");
+        } catch (RuntimeException e) {
+            dumpTraceAfterCrash();
+            throw e;
+        } finally {
+            if(profiler != null){
+                profiler.finish();
             }
-            // condition value needs to be consumed even if it is not met
-            stackPointer--;
-        }
-        else if(instruction instanceof Instr.Mark){
-            // stack pointer currently points to cell reserved for the return value
-            stack[stackPointer + 1] = extremePointer;
 
-            // old frame pointer to return stack frame
-            stack[stackPointer + 2] = framePointer;
+            output.flush();
 
-            stackPointer += 2;
+            if(heap != null){
+                heap.clear();
+            }
         }
-        else if(instruction instanceof Instr.Call){
-            // the name of the function lies on the topmost stack value
-            int oldPC = programCounter;
 
-            String functionName = (String)stack[stackPointer];
+        int exitCode = status == ExecutionResult.Status.HALTED ? stack[0] : 0;
 
-            programCounter = functionTable.get(functionName);
+        return new ExecutionResult(status, exitCode, fuelHandedOut - fuel, System.nanoTime() - startTime);
+    }
 
-            // the name of the function gets consumed and the old program counter gets stored there
-            stack[stackPointer] = oldPC;
-            framePointer = stackPointer;
+    private void dumpTraceAfterCrash(){
+        if(tracer != null){
+            tracer.dumpAfterCrash();
         }
-        else if(instruction instanceof Instr.Return){
+    }
 
-            // point to return  value
-            stackPointer = framePointer - 3;
+    // runs until Halt or until an EXIT is reached (end of a function called by compiled code)
+    private void run(){
 
-            programCounter = (Integer)stack[framePointer];
-            extremePointer = (Integer)(stack[framePointer - 2]);
-            framePointer = (Integer)stack[framePointer - 1];
-        }
-        else if(instruction instanceof Instr.Slide){
+        ExecutionTracer tracer = this.tracer;
+        ExecutionProfiler profiler = this.profiler;
 
-            int m = ((Instr.Slide)instruction).m;
+        while(isRunning){
+            int pc = programCounter++;
 
-            if(stackPointer < m){
-                throw new RuntimeException("Slide m and m > size of stack.");
+            if(tracer != null){
+                tracer.record(pc, opcodes[pc], stackPointer, framePointer, stackPointer >= 0 ? stack[stackPointer] : 0);
             }
 
-            stack[stackPointer - m] = stack[stackPointer];
-            stackPointer = stackPointer - m;
-        }
-        else if(instruction instanceof Instr.LoadRC){
-            int relativeAddress = ((Instr.LoadRC)instruction).j;
-
-            int absoluteAddress = relativeAddress + framePointer;
-            stackPointer++;
-            stack[stackPointer] = absoluteAddress;
-        }
-        else if(instruction instanceof Instr.Alloc){
-            stackPointer += ((Instr.Alloc) instruction).k;
-        }
-        // unconditional jump
-        else if(instruction instanceof Instr.Jump){
-            programCounter = jumpTable.get(((Instr.Jump) instruction).jumpLabel);
-        }
-        else if(instruction instanceof Instr.Print){
-            System.out.printf("VM: %s\n", stack[stackPointer]);
-            stackPointer--;
-        }
-        else if(instruction instanceof Instr.Pop){
-            if(stackPointer > 0){
-                stackPointer--;
+            switch(opcodes[pc]){
+                case Instr.STORE:
+                    // first is address
+                    // below is value
+                    store(stack[stackPointer], stack[stackPointer - 1]);
+                    // address is consumed
+                    stackPointer--;
+                    break;
+                case Instr.LOAD:
+                    // consumes the address to load from
+                    stack[stackPointer] = load(stack[stackPointer]);
+                    break;
+                case Instr.LOADC:
+                    stackPointer++;
+                    stack[stackPointer] = operands[pc];
+                    break;
+                case Instr.LOADRC:
+                    stackPointer++;
+                    stack[stackPointer] = operands[pc] + framePointer;
+                    break;
+                case Instr.POP:
+                    if(stackPointer > 0){
+                        stackPointer--;
+                    }
+                    else {
+                        throw new RuntimeException("Cannot pop from empty stack.");
+                    }
+                    break;
+                case Instr.JUMPZ:
+                    if(stack[stackPointer] == 0){
+                        programCounter = operands[pc];
+
+                        if(programCounter <= pc){
+                            useFuel(pc - programCounter + 1);
+                        }
+                    }
+                    // condition value needs to be consumed even if it is not met
+                    stackPointer--;
+                    break;
+                // unconditional jump
+                case Instr.JUMP:
+                    programCounter = operands[pc];
+
+                    // backward jumps (loops) use up fuel, forward jumps can't run forever
+                    if(programCounter <= pc){
+                        useFuel(pc - programCounter + 1);
+                    }
+                    break;
+                case Instr.MARK:
+                    // stack pointer currently points to cell reserved for the return value
+                    stack[stackPointer + 1] = extremePointer;
+
+                    // old frame pointer to return stack frame
+                    stack[stackPointer + 2] = framePointer;
+
+                    stackPointer += 2;
+                    break;
+                case Instr.CALL:
+                    useFuel(1);
+
+                    // the start of the function lies on the topmost stack value (resolved while decoding)
+                    int functionStart = stack[stackPointer];
+
+                    // the start of the function gets consumed and the old program counter gets stored there
+                    stack[stackPointer] = programCounter;
+                    framePointer = stackPointer;
+
+                    programCounter = functionStart;
+                    break;
+                case Instr.MEMO_INVOKE:
+                    // not seen before: a normal call, the result is stored when it returns
+                    if(memoCache == null || !isAnsweredByMemoCache(pc)){
+                        invoke(pc);
+                    }
+                    break;
+                case Instr.INVOKE:
+                    invoke(pc);
+                    break;
+                case Instr.TAIL_INVOKE:
+                    useFuel(1);
+
+                    // the arguments on top overwrite the arguments of the current frame
+                    // the rest of the frame stays, so the callee returns to where the current function would have
+                    int nNewArguments = secondOperands[pc];
+                    System.arraycopy(stack, stackPointer - nNewArguments + 1, stack, framePointer - 3 - nNewArguments, nNewArguments);
+
+                    stack[framePointer - 3] = 0;
+                    stackPointer = framePointer;
+
+                    programCounter = operands[pc];
+                    break;
+                case Instr.RETURN:
+                    // point to return  value
+                    stackPointer = framePointer - 3;
+
+                    programCounter = stack[framePointer];
+                    extremePointer = stack[framePointer - 2];
+                    framePointer = stack[framePointer - 1];
+
+                    // returning to an Invoke: the arguments below the return value get removed right away
+                    int caller = opcodes[programCounter - 1];
+                    if(caller == Instr.INVOKE || caller == Instr.MEMO_INVOKE){
+                        int nArguments = secondOperands[programCounter - 1];
+
+                        stack[stackPointer - nArguments] = stack[stackPointer];
+                        stackPointer -= nArguments;
+
+                        if(caller == Instr.MEMO_INVOKE && memoCache != null){
+                            storeMemoResult(stack[stackPointer]);
+                        }
+                    }
+                    break;
+                case Instr.SLIDE:
+                    int m = operands[pc];
+
+                    if(stackPointer < m){
+                        throw new RuntimeException("Slide m and m > size of stack.");
+                    }
+
+                    stack[stackPointer - m] = stack[stackPointer];
+                    stackPointer = stackPointer - m;
+                    break;
+                case Instr.ALLOC:
+                    stackPointer += operands[pc];
+                    break;
+                case Instr.ENTER:
+                    enter(stackPointer, operands[pc]);
+                    break;
+                case Instr.MALLOC:
+                    stack[stackPointer] = malloc(stack[stackPointer]);
+                    break;
+                case Instr.FREE:
+                    free(stack[stackPointer]);
+                    stackPointer--;
+                    break;
+                case Instr.PRINT:
+                    print(stack[stackPointer]);
+                    stackPointer--;
+                    break;
+                case Instr.PRINT_STRING:
+                    printString(stack[stackPointer]);
+                    stackPointer--;
+                    break;
+                case Instr.SNAPSHOT:
+                    if(snapshotListener != null){
+                        takeSnapshot();
+                    }
+                    break;
+                case Instr.EXIT:
+                    return;
+                case Instr.HALT:
+                    halt();
+                    break;
+                case Instr.FLIP_SIGN:
+                    stack[stackPointer] = -stack[stackPointer];
+                    break;
+                case Instr.NEG:
+                    stack[stackPointer] = stack[stackPointer] == 0 ? 1 : 0;
+                    break;
+
+                // binary operations: the top most value gets consumed
+                // (still there but above the stack pointer so doesn't count)
+                case Instr.ADD:
+                    stackPointer--;
+                    stack[stackPointer] = stack[stackPointer] + stack[stackPointer + 1];
+                    break;
+                case Instr.SUB:
+                    stackPointer--;
+                    stack[stackPointer] = stack[stackPointer] - stack[stackPointer + 1];
+                    break;
+                case Instr.MUL:
+                    stackPointer--;
+                    stack[stackPointer] = stack[stackPointer] * stack[stackPointer + 1];
+                    break;
+                case Instr.DIV:
+                    stackPointer--;
+                    stack[stackPointer] = stack[stackPointer] / stack[stackPointer + 1];
+                    break;
+                case Instr.MOD:
+                    stackPointer--;
+                    stack[stackPointer] = stack[stackPointer] % stack[stackPointer + 1];
+                    break;
+                case Instr.LESS:
+                    stackPointer--;
+                    stack[stackPointer] = stack[stackPointer] < stack[stackPointer + 1] ? 1 : 0;
+                    break;
+                case Instr.LESS_OR_EQUAL:
+                    stackPointer--;
+                    stack[stackPointer] = stack[stackPointer] <= stack[stackPointer + 1] ? 1 : 0;
+                    break;
+                case Instr.GREATER:
+                    stackPointer--;
+                    stack[stackPointer] = stack[stackPointer] > stack[stackPointer + 1] ? 1 : 0;
+                    break;
+                case Instr.GREATER_OR_EQUAL:
+                    stackPointer--;
+                    stack[stackPointer] = stack[stackPointer] >= stack[stackPointer + 1] ? 1 : 0;
+                    break;
+                case Instr.EQUAL:
+                    stackPointer--;
+                    stack[stackPointer] = stack[stackPointer] == stack[stackPointer + 1] ? 1 : 0;
+                    break;
+                case Instr.UNEQUAL:
+                    stackPointer--;
+                    stack[stackPointer] = stack[stackPointer] != stack[stackPointer + 1] ? 1 : 0;
+                    break;
+                case Instr.AND:
+                    stackPointer--;
+                    stack[stackPointer] = (stack[stackPointer] != 0 && stack[stackPointer + 1] != 0) ? 1 : 0;
+                    break;
+                case Instr.OR:
+                    stackPointer--;
+                    stack[stackPointer] = (stack[stackPointer] != 0 || stack[stackPointer + 1] != 0) ? 1 : 0;
+                    break;
+
+                // superinstructions
+                case Instr.LOADR:
+                    stackPointer++;
+                    stack[stackPointer] = stack[framePointer + operands[pc]];
+                    break;
+                case Instr.STORER_POP:
+                    stack[framePointer + operands[pc]] = stack[stackPointer];
+                    stackPointer--;
+                    break;
+                case Instr.STORE_POP:
+                    store(stack[stackPointer], stack[stackPointer - 1]);
+                    stackPointer -= 2;
+                    break;
+                case Instr.ADDC:
+                    stack[stackPointer] += operands[pc];
+                    break;
+                case Instr.LESS_JUMPZ:
+                    stackPointer -= 2;
+                    if(stack[stackPointer + 1] >= stack[stackPointer + 2]){
+                        programCounter = operands[pc];
+
+                        if(programCounter <= pc){
+                            useFuel(pc - programCounter + 1);
+                        }
+                    }
+                    break;
+                default:
+                    throw new RuntimeException("Unknown Instruction " + image.describe(pc));
             }
-            else {
-                throw new RuntimeException("Cannot pop from empty stack.");
+
+            if(profiler != null){
+                profiler.executed(pc, programCounter);
             }
         }
-        else if(instruction instanceof Instr.LoadC){
-            stackPointer++;
-            stack[stackPointer] = ((Instr.LoadC)instruction).q;
-        }
-        else if(instruction instanceof  Instr.Load){
+    }
 
-            // consumes the address to load from
-            Integer addressToLoadFrom = (Integer)stack[stackPointer];
-            stack[stackPointer] = stack[addressToLoadFrom];
-        }
-        else if(instruction instanceof Instr.FlipSign){
-            stack[stackPointer] = -((Integer)stack[stackPointer]);
+    // memory accesses with computed addresses (pointers), the addresses from Heap.BASE on belong to the heap
+    int load(int address){
+        return address < Heap.BASE ? stack[address] : heap().load(address);
+    }
+
+    void store(int address, int value){
+        if(address < Heap.BASE){
+            stack[address] = value;
         }
-        else if(instruction instanceof Instr.Neg){
-            int stackValue = ((Integer)stack[stackPointer]);
-            stack[stackPointer] = stackValue == 0 ? 1 : 0;
+        else{
+            heap().store(address, value);
         }
-        else if(instruction instanceof Instr.Add){
-            executeBinaryOperation((o1, o2) -> {
-                if(o1 instanceof Integer && o2 instanceof Integer){
-                    return ((Integer)o1) + ((Integer)o2);
-                }
+    }
 
-                throw new RuntimeException("Add doesn't support combination (" + o1.getClass().getName() + ", " + o2.getClass().getName() + ")");
-            });
+    int malloc(int n){
+        // the heap of an earlier run is used again if the size didn't change
+        if(heap == null || heap.size != heapSize){
+            heap = new Heap(heapSize);
         }
-        else if(instruction instanceof Instr.Div){
-            executeBinaryOperation((o1, o2) -> {
-                if(o1 instanceof Integer && o2 instanceof Integer){
-                    return ((Integer)o1) / ((Integer)o2);
-                }
+        return heap.malloc(n);
+    }
 
-                throw new RuntimeException("Div doesn't support combination (" + o1.getClass().getName() + ", " + o2.getClass().getName() + ")");
-            });
-        }
-        else if(instruction instanceof Instr.Greater){
-            executeBinaryOperation((o1, o2) -> {
-                if(o1 instanceof Integer && o2 instanceof Integer){
-                    return ((Integer)o1) > ((Integer)o2) ? 1 : 0;
-                }
+    void free(int address){
+        heap().free(address);
+    }
 
-                throw new RuntimeException("Greater doesn't support combination (" + o1.getClass().getName() + ", " + o2.getClass().getName() + ")");
-            });
+    private Heap heap(){
+        if(heap == null || heap.top == 0){
+            throw new RuntimeException("Heap address used before anything was allocated with malloc.");
         }
-        else if(instruction instanceof Instr.GreaterOrEqual){
-            executeBinaryOperation((o1, o2) -> {
-                if(o1 instanceof Integer && o2 instanceof Integer){
-                    return ((Integer)o1) >= ((Integer)o2) ? 1 : 0;
-                }
+        return heap;
+    }
 
-                throw new RuntimeException("GreaterOrEqual doesn't support combination (" + o1.getClass().getName() + ", " + o2.getClass().getName() + ")");
-            });
+    // Enter q: the frame never grows more than q cells above the stack pointer,
+    // so checking once here makes a check on every push unnecessary
+    void enter(int stackPointer, int q){
+        extremePointer = stackPointer + q;
+
+        if(extremePointer >= stack.length){
+            throw new RuntimeException(String.format("Stack overflow: the frame needs the cells up to %d but the stack has only %d.", extremePointer, stack.length));
         }
-        else if(instruction instanceof Instr.And){
-            executeBinaryOperation((o1, o2) -> {
-                if(o1 instanceof Integer && o2 instanceof Integer){
+    }
 
-                    int notNormalizedValue = ((Integer)o1) * ((Integer)o2);
-                    return notNormalizedValue == 0 ? 0 : 1;
-                }
+    // Invoke, and MemoInvoke when the memo cache doesn't have the result
+    private void invoke(int pc){
+        useFuel(1);
 
-                throw new RuntimeException("Add doesn't support combination (" + o1.getClass().getName() + ", " + o2.getClass().getName() + ")");
-            });
-        }
-        else if(instruction instanceof Instr.Or){
-            executeBinaryOperation((o1, o2) -> {
-                if(o1 instanceof Integer && o2 instanceof Integer){
+        if(jit != null){
+            CompiledFunction compiled = jit.compiledFunction(operands[pc]);
 
-                    int o1Val = ((Integer)o1);
-                    int o2Val = ((Integer)o2);
-                    return ((o1Val != 0) || (o2Val != 0)) ? 1 : 0;
-                }
+            if(compiled != null){
+                invokeCompiled(compiled, secondOperands[pc]);
 
-                throw new RuntimeException("Add doesn't support combination (" + o1.getClass().getName() + ", " + o2.getClass().getName() + ")");
-            });
-        }
-        else if(instruction instanceof Instr.LessOrEqual){
-            executeBinaryOperation((o1, o2) -> {
-                if(o1 instanceof Integer && o2 instanceof Integer){
-                    return ((Integer)o1) <= ((Integer)o2) ? 1 : 0;
+                if(opcodes[pc] == Instr.MEMO_INVOKE && memoCache != null){
+                    storeMemoResult(stack[stackPointer]);
                 }
-
-                throw new RuntimeException("LessOrEqual doesn't support combination (" + o1.getClass().getName() + ", " + o2.getClass().getName() + ")");
-            });
+                return;
+            }
         }
-        else if(instruction instanceof Instr.Equal){
-            executeBinaryOperation((o1, o2) -> {
-                if(o1 instanceof Integer && o2 instanceof Integer){
-                    return ((Integer) o1).equals((Integer) o2) ? 1 : 0;
-                }
 
-                throw new RuntimeException("Equal doesn't support combination (" + o1.getClass().getName() + ", " + o2.getClass().getName() + ")");
-            });
+        // return value, extreme pointer, old frame pointer, old program counter
+        stack[stackPointer + 1] = 0;
+        stack[stackPointer + 2] = extremePointer;
+        stack[stackPointer + 3] = framePointer;
+        stack[stackPointer + 4] = programCounter;
+
+        stackPointer += 4;
+        framePointer = stackPointer;
+
+        programCounter = operands[pc];
+    }
+
+    // on a hit the arguments are replaced by the result right away, like after the call
+    private boolean isAnsweredByMemoCache(int pc){
+
+        int nArguments = secondOperands[pc];
+        MemoCache.Key key = memoCache.key(operands[pc], stack, stackPointer, nArguments);
+        Integer result = memoCache.lookup(key);
+
+        if(result == null){
+            pendingMemoCalls.push(key);
+            return false;
         }
-        else if(instruction instanceof Instr.Mul){
-            executeBinaryOperation((o1, o2) -> {
-                if(o1 instanceof Integer && o2 instanceof Integer){
-                    return ((Integer)o1) * ((Integer)o2);
-                }
 
-                throw new RuntimeException("Mul doesn't support combination (" + o1.getClass().getName() + ", " + o2.getClass().getName() + ")");
-            });
+        stackPointer -= nArguments - 1;
+        stack[stackPointer] = result;
+        return true;
+    }
+
+    // the arguments are gone by now (and may have been changed by the callee), so the key was kept since the call
+    // (none for calls that were running when a resumed snapshot was taken)
+    void storeMemoResult(int result){
+        if(!pendingMemoCalls.isEmpty()){
+            memoCache.store(pendingMemoCalls.pop(), result);
         }
-        else if(instruction instanceof Instr.Sub){
-            executeBinaryOperation((o1, o2) -> {
-                if(o1 instanceof Integer && o2 instanceof Integer){
-                    return ((Integer)o1) - ((Integer)o2);
-                }
+    }
 
-                throw new RuntimeException("Sub doesn't support combination (" + o1.getClass().getName() + ", " + o2.getClass().getName() + ")");
-            });
+    private void takeSnapshot(){
+
+        if(nestedRuns > 0){
+            throw new RuntimeException("snapshot() can't be taken inside a function that was called by compiled code.");
         }
-        else if(instruction instanceof Instr.Mod){
-            executeBinaryOperation((o1, o2) -> {
-                if(o1 instanceof Integer && o2 instanceof Integer){
-                    return ((Integer)o1) % ((Integer)o2);
-                }
 
-                throw new RuntimeException("Mod doesn't support combination (" + o1.getClass().getName() + ", " + o2.getClass().getName() + ")");
-            });
+        snapshotListener.accept(new VmSnapshot(this));
+
+        if(stopAtSnapshot){
+            throw new RunStoppedException(ExecutionResult.Status.STOPPED_AT_SNAPSHOT);
         }
-        else if(instruction instanceof Instr.Less){
-            executeBinaryOperation((o1, o2) -> {
-                if(o1 instanceof Integer && o2 instanceof Integer){
-                    return ((Integer)o1) < ((Integer)o2) ? 1 : 0;
-                }
+    }
 
-                throw new RuntimeException("Less doesn't support combination (" + o1.getClass().getName() + ", " + o2.getClass().getName() + ")");
-            });
+    // called on backward jumps and calls, also by the node engine and compiled code
+    void useFuel(int amount){
+        fuel -= amount;
+
+        if(fuel < 0){
+            refuel();
         }
-        else if(instruction instanceof Instr.UnEqual){
-            executeBinaryOperation((o1, o2) -> {
-                if(o1 instanceof Integer && o2 instanceof Integer){
-                    return !((Integer) o1).equals((Integer) o2) ? 1 : 0;
-                }
+    }
 
-                throw new RuntimeException("Less doesn't support combination (" + o1.getClass().getName() + ", " + o2.getClass().getName() + ")");
-            });
+    private void refuel(){
+        while(fuel < 0){
+            if(deadline != 0 && System.nanoTime() - deadline >= 0){
+                throw new RunStoppedException(ExecutionResult.Status.TIMED_OUT);
+            }
+            if(fuelReserve == 0){
+                throw new RunStoppedException(ExecutionResult.Status.OUT_OF_FUEL);
+            }
+            handOutFuel();
         }
+    }
+
+    // without a deadline all the fuel is handed out at once
+    private void handOutFuel(){
+        long slice = deadline != 0 ? Math.min(fuelReserve, FUEL_SLICE) : fuelReserve;
+
+        fuelReserve -= slice;
+        fuel += slice;
+        fuelHandedOut += slice;
+    }
+
+    void halt(){
+        isRunning = false;
+
+        // return value from main
+        output.exit(stack[0]);
+    }
+
+    void print(int value){
+        output.printInt(value);
+    }
 
-        else if(instruction instanceof Instr.Store){
-            // first is address
-            // below is value
-            stack[(Integer) stack[stackPointer]] = stack[stackPointer - 1];
-            // address is consumed
-            stackPointer--;
+    void printString(int constantIndex){
+        output.printString(constantPool[constantIndex]);
+    }
+
+    // same as Invoke, Return and the slide of the arguments but the function body runs as JVM bytecode
+    private void invokeCompiled(CompiledFunction compiled, int nArguments){
+
+        stack[stackPointer + 1] = 0;
+        stack[stackPointer + 2] = extremePointer;
+        stack[stackPointer + 3] = framePointer;
+        stack[stackPointer + 4] = programCounter;
+
+        int calleeFramePointer = stackPointer + 4;
+
+        compiled.run(this, stack, calleeFramePointer);
+
+        stackPointer = calleeFramePointer - 3 - nArguments;
+        stack[stackPointer] = stack[calleeFramePointer - 3];
+    }
+
+    // called by compiled code, the arguments are already in stack[.. stackPointer]
+    // returns the return value of the function
+    int invokeFromCompiled(int functionStart, int stackPointer, int callerFramePointer){
+
+        useFuel(1);
+
+        stack[stackPointer + 1] = 0;
+        stack[stackPointer + 2] = extremePointer;
+        stack[stackPointer + 3] = callerFramePointer;
+        stack[stackPointer + 4] = exitAddress;
+
+        int calleeFramePointer = stackPointer + 4;
+
+        CompiledFunction compiled = jit.compiledFunction(functionStart);
+
+        if(compiled != null){
+            compiled.run(this, stack, calleeFramePointer);
         }
-        else {
-            throw new RuntimeException("Unknown Instruction " + instruction);
+        else{
+            interpretFunction(functionStart, calleeFramePointer);
         }
+
+        return stack[calleeFramePointer - 3];
     }
 
-    private void executeBinaryOperation(BiFunction<Object, Object, Object> binaryOperation){
+    // runs the function in the interpreter until its Return jumps to the EXIT behind the code
+    private void interpretFunction(int functionStart, int calleeFramePointer){
+
+        int savedProgramCounter = programCounter;
+        int savedStackPointer = stackPointer;
+        int savedFramePointer = framePointer;
+
+        programCounter = functionStart;
+        stackPointer = calleeFramePointer;
+        framePointer = calleeFramePointer;
 
-        if(stackPointer == 0){
-            throw new RuntimeException("binary operation needs two operands.");
+        nestedRuns++;
+        try {
+            run();
+        } finally {
+            nestedRuns--;
         }
 
-        // top most value gets consumed (still there but above the stack pointer so doesn't count)
-        stackPointer--;
-        stack[stackPointer] = binaryOperation.apply(stack[stackPointer], stack[stackPointer + 1]);
+        programCounter = savedProgramCounter;
+        stackPointer = savedStackPointer;
+        framePointer = savedFramePointer;
     }
 
     @Override
     public String toString(){
-        StringBuilder res = new StringBuilder(String.format("PC: %d, SP: %d, INSTR: %s\n", programCounter, stackPointer, codeStore[programCounter]));
+        StringBuilder res = new StringBuilder(String.format("PC: %d, SP: %d, INSTR: %s\n", programCounter, stackPointer, image.describe(programCounter)));
         res.append("STACK: ");
         int nLastToDisplay = 20;
 
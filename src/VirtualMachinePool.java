@@ -0,0 +1,44 @@
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.function.Supplier;
+
+// reuses VirtualMachine instances (and their stacks) for many short runs from many threads
+// a VM only runs on one thread at a time, the ProgramImage it runs can be shared by all of them
+public class VirtualMachinePool {
+
+    // creates a VM whenever no idle one is left (stack size, JIT settings, ...)
+    Supplier<VirtualMachine> factory;
+
+    // the most recently released VM comes first, its stack is most likely still in the cache
+    ConcurrentLinkedDeque<VirtualMachine> idle = new ConcurrentLinkedDeque<>();
+
+    public VirtualMachinePool(){
+        this(VirtualMachine::new);
+    }
+
+    public VirtualMachinePool(Supplier<VirtualMachine> factory){
+        this.factory = factory;
+    }
+
+    public VirtualMachine acquire(){
+        VirtualMachine vm = idle.pollFirst();
+        return vm != null ? vm : factory.get();
+    }
+
+    // the VM must not be used by the caller afterward
+    public void release(VirtualMachine vm){
+        idle.offerFirst(vm);
+    }
+
+    // the limits (fuelLimit, timeLimitMillis) are the ones the factory set on the VM
+    public ExecutionResult execute(ProgramImage image){
+
+        VirtualMachine vm = acquire();
+
+        try {
+            return vm.execute(image);
+        } finally {
+            // the next run resets the VM, even if this one failed
+            release(vm);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+// the state of a VM when the program executed snapshot(): the used stack cells, the registers, the heap and the program
+// a snapshot is never changed, so any number of VMs can resume from it, also at the same time (VirtualMachine.resume)
+// usage: VmSnapshot snapshot = vm.runToSnapshot(image); ... vm.resume(snapshot);
+public class VmSnapshot {
+
+    static final int MAGIC = 0x434D534E; // "CMSN"
+    static final int VERSION = 1;
+
+    final ProgramImage image;
+
+    // cells 0 .. stackPointer, the ones above are cleared when resuming
+    final int[] stack;
+
+    final int stackPointer;
+    final int framePointer;
+    final int extremePointer;
+
+    // the instruction behind the snapshot()
+    final int programCounter;
+
+    // null if the program didn't call malloc yet
+    final int[] heapCells;
+    final int[] freeLists;
+    final int heapSize;
+
+    VmSnapshot(VirtualMachine vm){
+
+        image = vm.image;
+        stack = Arrays.copyOf(vm.stack, vm.stackPointer + 1);
+
+        stackPointer = vm.stackPointer;
+        framePointer = vm.framePointer;
+        extremePointer = vm.extremePointer;
+        programCounter = vm.programCounter;
+
+        if(vm.heap != null){
+            heapCells = vm.heap.usedCells();
+            freeLists = vm.heap.freeLists.clone();
+            heapSize = vm.heap.size;
+        }
+        else{
+            heapCells = null;
+            freeLists = null;
+            heapSize = 0;
+        }
+    }
+
+    private VmSnapshot(ProgramImage image, int[] stack, int stackPointer, int framePointer, int extremePointer, int programCounter,
+                       int[] heapCells, int[] freeLists, int heapSize){
+        this.image = image;
+        this.stack = stack;
+        this.stackPointer = stackPointer;
+        this.framePointer = framePointer;
+        this.extremePointer = extremePointer;
+        this.programCounter = programCounter;
+        this.heapCells = heapCells;
+        this.freeLists = freeLists;
+        this.heapSize = heapSize;
+    }
+
+    // the VM was just initialized with the image of the snapshot
+    void restoreInto(VirtualMachine vm){
+
+        if(stack.length > vm.stack.length){
+            throw new RuntimeException(String.format("The snapshot needs %d stack cells but the stack has only %d.", stack.length, vm.stack.length));
+        }
+
+        System.arraycopy(stack, 0, vm.stack, 0, stack.length);
+
+        vm.stackPointer = stackPointer;
+        vm.framePointer = framePointer;
+        vm.extremePointer = extremePointer;
+        vm.programCounter = programCounter;
+
+        if(heapCells != null){
+            if(vm.heap == null || vm.heap.size != heapSize){
+                vm.heap = new Heap(heapSize);
+            }
+            vm.heap.restore(heapCells, freeLists);
+        }
+    }
+
+    // magic, version, fingerprint of the program, registers, stack cells, then the heap (size, free lists, cells) if there is one
+    public void write(Path path){
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path.toFile())))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(image.fingerprint);
+
+            out.writeInt(stackPointer);
+            out.writeInt(framePointer);
+            out.writeInt(extremePointer);
+            out.writeInt(programCounter);
+
+            writeCells(out, stack);
+
+            out.writeBoolean(heapCells != null);
+            if(heapCells != null){
+                out.writeInt(heapSize);
+                writeCells(out, freeLists);
+                writeCells(out, heapCells);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write the snapshot to " + path, e);
+        }
+    }
+
+    // the program isn't part of the file, it has to be the one the snapshot was taken with
+    public static VmSnapshot read(Path path, ProgramImage image){
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path.toFile())))) {
+
+            if(in.readInt() != MAGIC){
+                throw new RuntimeException(path + " is not a snapshot of the VM.");
+            }
+            int version = in.readInt();
+            if(version != VERSION){
+                throw new RuntimeException(String.format("Snapshot version %d is not supported.", version));
+            }
+            if(in.readLong() != image.fingerprint){
+                throw new RuntimeException(String.format("The snapshot %s was taken with a different program.", path));
+            }
+
+            int stackPointer = in.readInt();
+            int framePointer = in.readInt();
+            int extremePointer = in.readInt();
+            int programCounter = in.readInt();
+
+            int[] stack = readCells(in);
+
+            int[] heapCells = null;
+            int[] freeLists = null;
+            int heapSize = 0;
+
+            if(in.readBoolean()){
+                heapSize = in.readInt();
+                freeLists = readCells(in);
+                heapCells = readCells(in);
+            }
+
+            return new VmSnapshot(image, stack, stackPointer, framePointer, extremePointer, programCounter, heapCells, freeLists, heapSize);
+
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read the snapshot " + path, e);
+        }
+    }
+
+    private static void writeCells(DataOutputStream out, int[] cells) throws IOException {
+        out.writeInt(cells.length);
+        for(int cell : cells){
+            out.writeInt(cell);
+        }
+    }
+
+    private static int[] readCells(DataInputStream in) throws IOException {
+        int[] cells = new int[in.readInt()];
+        for(int i = 0; i < cells.length; i++){
+            cells[i] = in.readInt();
+        }
+        return cells;
+    }
+}
@@ -0,0 +1,84 @@
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+// usage: StackDepthTest (compile it together with src/)
+// a variable declared inside a loop must not take new cells on every iteration: the program runs on a small stack
+// in all engines and they agree on the output
+public class StackDepthTest {
+
+    static final String SOURCE = """
+            int main(){
+                int i = 0;
+                int sum = 0;
+                while(i < 5000){
+                    int x = i;
+                    int pair[2];
+                    pair[1] = x % 7;
+                    if(x > 2500){
+                        int y = pair[1];
+                        sum = sum + y;
+                    }
+                    sum = add(sum, x);
+                    i = i + 1;
+                }
+                print(sum);
+                return 0;
+            }
+
+            int add(int sum, int x){
+                int n = 0;
+                while(n < 2){
+                    int half = x / 2;
+                    sum = sum + half;
+                    n = n + 1;
+                }
+                return sum;
+            }
+            """;
+
+    public static void main(String[] args) {
+
+        Code code = new CodeGenerator().generateCode(new Parser(new Lexer(SOURCE).getTokens()).parse());
+
+        PrintStream console = System.out;
+        String expected = null;
+
+        for(String engine : List.of("interpreter", "jit", "node")){
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            System.setOut(new PrintStream(output, true));
+
+            try {
+                VirtualMachine vm = new VirtualMachine(1000);
+
+                switch(engine){
+                    case "jit" -> {
+                        vm.jitEnabled = true;
+                        vm.jitThreshold = 10;
+                    }
+                    case "node" -> vm.engine = ExecutionEngine.NODE_TREE;
+                }
+
+                vm.execute(code);
+            } finally {
+                System.setOut(console);
+            }
+
+            String printed = output.toString();
+
+            if(!printed.endsWith("VM: exited with code 0\n")){
+                throw new RuntimeException(String.format("%s printed %s", engine, printed));
+            }
+
+            if(expected == null){
+                expected = printed;
+            }
+            else if(!expected.equals(printed)){
+                throw new RuntimeException(String.format("%s printed %s instead of %s", engine, printed, expected));
+            }
+        }
+
+        System.out.print("StackDepthTest passed: " + expected);
+    }
+}